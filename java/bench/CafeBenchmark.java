@@ -0,0 +1,232 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the Cafe data-access paths against a local database seeded with
+ * sql/scripts/create_db.sh (data/users.csv and data/menu.csv).
+ *
+ * Usage: CafeBenchmark &lt;dbname&gt; &lt;port&gt; &lt;user&gt; [benchmark ...]
+ *
+ * Each benchmark runs on bench.threads threads (default 4), first for
+ * bench.warmupSeconds (default 5) and then for bench.seconds (default 10)
+ * of measurement, and reports throughput and p50/p99/p99.9 latency. The
+ * menus print to a discarded per-thread console, so rendering is measured
+ * but not shown. LogIn signs in as bench.loginUsers (default 100) users
+ * the run creates with hashed passwords, so the seeded users are only
+ * read. Users and orders created by the run are deleted at the end.
+ *
+ */
+public class CafeBenchmark {
+
+   static final int THREADS = Integer.getInteger("bench.threads", 4);
+   static final int WARMUP_SECONDS = Integer.getInteger("bench.warmupSeconds", 5);
+   static final int SECONDS = Integer.getInteger("bench.seconds", 10);
+   static final String DATA_DIR = System.getProperty("bench.dataDir", "data");
+   static final int LOGIN_USERS = Integer.getInteger("bench.loginUsers", 100);
+
+   static final String ORDER_LOGIN = "bench_orders";
+   static final String LOGIN_PREFIX = "bench_login_";
+   static final String LOGIN_PASSWORD = "bench";
+   static final String CLEANUP = "DELETE FROM Users WHERE login LIKE 'bench!_%' ESCAPE '!'";
+
+   /* One measured call, returns false when the call did not succeed */
+   private interface Operation {
+      boolean run(Cafe esql, Random random, ByteArrayOutputStream output) throws Exception;
+   }
+
+   // logins and passwords from users.csv
+   static final List<String[]> USERS = new ArrayList<String[]>();
+
+   // item names from menu.csv
+   static final List<String> ITEMS = new ArrayList<String>();
+
+   // numbers unique to each user created by the run
+   static final AtomicInteger CREATED = new AtomicInteger();
+
+   static final Map<String, Operation> BENCHMARKS = new LinkedHashMap<String, Operation>();
+   static {
+      BENCHMARKS.put("LogIn", new Operation() {
+         public boolean run(Cafe esql, Random random, ByteArrayOutputStream output) throws Exception {
+            String login = LOGIN_PREFIX + random.nextInt(LOGIN_USERS);
+            return esql.getUserService().authenticate(login, LOGIN_PASSWORD) != null;
+         }
+      });
+      BENCHMARKS.put("LoginExists", new Operation() {
+         public boolean run(Cafe esql, Random random, ByteArrayOutputStream output) {
+            return Cafe.LoginExists(esql, USERS.get(random.nextInt(USERS.size()))[0]);
+         }
+      });
+      BENCHMARKS.put("ItemOnMenu", new Operation() {
+         public boolean run(Cafe esql, Random random, ByteArrayOutputStream output) {
+            return Cafe.ItemOnMenu(esql, ITEMS.get(random.nextInt(ITEMS.size())));
+         }
+      });
+      BENCHMARKS.put("ViewFullMenu", new Operation() {
+         public boolean run(Cafe esql, Random random, ByteArrayOutputStream output) {
+            Cafe.ViewFullMenu(esql);
+            return output.size() > 0;
+         }
+      });
+      BENCHMARKS.put("CreateUser", new Operation() {
+         public boolean run(Cafe esql, Random random, ByteArrayOutputStream output) {
+            int n = CREATED.incrementAndGet();
+            String input = "bench_" + n + "\nbench\n" + String.format("9%09d", n) + "\n";
+            SessionConsole.attach(new BufferedReader(new StringReader(input)), output);
+            Cafe.CreateUser(esql);
+            return output.toString().contains("User successfully created!");
+         }
+      });
+      BENCHMARKS.put("PlaceOrder", new Operation() {
+         public boolean run(Cafe esql, Random random, ByteArrayOutputStream output) throws Exception {
+            Map<String, Integer> items = new LinkedHashMap<String, Integer>();
+            for (int i = 1 + random.nextInt(3); i > 0; --i)
+               items.put(ITEMS.get(random.nextInt(ITEMS.size())), 1 + random.nextInt(2));
+            return esql.getOrderService().placeOrder(ORDER_LOGIN, items) > 0;
+         }
+      });
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java CafeBenchmark <dbname> <port> <user> [benchmark ...]");
+         System.err.println("Benchmarks: " + BENCHMARKS.keySet());
+         return;
+      }
+      List<String> selected = args.length > 3 ? Arrays.asList(args).subList(3, args.length)
+            : new ArrayList<String>(BENCHMARKS.keySet());
+      for (String name : selected) {
+         if (!BENCHMARKS.containsKey(name)) {
+            System.err.println("Unknown benchmark " + name + ", expected one of " + BENCHMARKS.keySet());
+            return;
+         }
+      }
+      loadData();
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      Cafe esql = new Cafe(args[0], args[1], args[2], "");
+      SessionConsole.install();
+      try {
+         // leftovers of an interrupted run would collide with the new users
+         esql.executeUpdate(CLEANUP);
+         esql.executeUpdate("INSERT INTO Users (login, password, type) VALUES (?, ?, ?)", ORDER_LOGIN, "bench",
+               Role.CUSTOMER.getDbValue());
+         if (selected.contains("LogIn"))
+            createLoginUsers(esql);
+         System.out.println(String.format("%d threads, %ds warmup, %ds measurement", THREADS, WARMUP_SECONDS,
+               SECONDS));
+         System.out.println(String.format("%-14s %10s %9s %9s %9s %9s %9s %7s", "benchmark", "ops/s", "mean ms",
+               "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors"));
+         for (String name : selected) {
+            Operation operation = BENCHMARKS.get(name);
+            measure(esql, operation, WARMUP_SECONDS, null, null);
+            LatencyHistogram latency = new LatencyHistogram();
+            AtomicLong errors = new AtomicLong();
+            measure(esql, operation, SECONDS, latency, errors);
+            System.out.println(String.format("%-14s %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f %7d", name,
+                  latency.getCount() / (double) SECONDS, latency.getMean() / 1e6,
+                  latency.getPercentile(0.50) / 1e6, latency.getPercentile(0.99) / 1e6,
+                  latency.getPercentile(0.999) / 1e6, latency.getMax() / 1e6, errors.get()));
+         }
+      } finally {
+         // removes the users created by the run, and their orders with them
+         esql.executeUpdate(CLEANUP);
+         esql.cleanup();
+      }
+   }// end main
+
+   /*
+    * Creates the users LogIn signs in as, with their passwords already
+    * hashed so no login pays for upgrading a plaintext password
+    */
+   private static void createLoginUsers(Cafe esql) throws Exception {
+      List<String> passwords = new ArrayList<String>(LOGIN_USERS);
+      for (int i = 0; i < LOGIN_USERS; ++i)
+         passwords.add(LOGIN_PASSWORD);
+      List<String> hashes = esql.getPasswords().hashAll(passwords);
+      for (int i = 0; i < LOGIN_USERS; ++i)
+         esql.executeUpdate("INSERT INTO Users (login, password, type) VALUES (?, ?, ?)", LOGIN_PREFIX + i,
+               hashes.get(i), Role.CUSTOMER.getDbValue());
+   }// end createLoginUsers
+
+   /* Runs the operation on every thread for the given time */
+   private static void measure(final Cafe esql, final Operation operation, int seconds,
+         final LatencyHistogram latency, final AtomicLong errors) throws InterruptedException {
+      final long deadline = System.nanoTime() + seconds * 1000000000L;
+      final CountDownLatch done = new CountDownLatch(THREADS);
+      for (int t = 0; t < THREADS; ++t) {
+         final Random random = new Random(t);
+         Thread thread = new Thread(new Runnable() {
+            public void run() {
+               ByteArrayOutputStream output = new ByteArrayOutputStream();
+               BufferedReader noInput = new BufferedReader(new StringReader(""));
+               try {
+                  while (System.nanoTime() < deadline) {
+                     output.reset();
+                     SessionConsole.attach(noInput, output);
+                     long start = System.nanoTime();
+                     boolean ok;
+                     try {
+                        ok = operation.run(esql, random, output);
+                     } catch (Exception e) {
+                        ok = false;
+                     }
+                     long elapsed = System.nanoTime() - start;
+                     if (latency != null) {
+                        latency.record(elapsed);
+                        if (!ok)
+                           errors.incrementAndGet();
+                     }
+                  }
+               } finally {
+                  SessionConsole.detach();
+                  done.countDown();
+               }
+            }
+         }, "cafe-benchmark-" + t);
+         thread.start();
+      }
+      done.await();
+   }// end measure
+
+   /* Reads the sample logins and menu items */
+   private static void loadData() throws IOException {
+      for (String line : readLines(DATA_DIR + "/users.csv")) {
+         String[] fields = line.split(";", -1);
+         if (fields.length == 5)
+            USERS.add(new String[] { fields[0], fields[2] });
+      }
+      for (String line : readLines(DATA_DIR + "/menu.csv"))
+         ITEMS.add(line.split(";", -1)[0]);
+      if (USERS.isEmpty() || ITEMS.isEmpty())
+         throw new IOException("No users or menu items found in " + DATA_DIR);
+   }// end loadData
+
+   private static List<String> readLines(String path) throws IOException {
+      List<String> lines = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (!line.trim().isEmpty())
+               lines.add(line);
+         }
+      } finally {
+         reader.close();
+      }
+      return lines;
+   }// end readLines
+
+}// end CafeBenchmark
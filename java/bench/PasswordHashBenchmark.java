@@ -0,0 +1,57 @@
+import java.util.Arrays;
+
+/**
+ * Measures how long one password verification takes at several PBKDF2
+ * costs, to pick cafe.password.iterations for the login hardware.
+ *
+ * Usage: PasswordHashBenchmark [iterations ...]
+ *
+ * For each cost prints the mean, p50 and p99 verification time and the
+ * logins per second a single hashing thread sustains.
+ *
+ */
+public class PasswordHashBenchmark {
+
+   static final int WARMUP = 5;
+   static final int SAMPLES = Integer.getInteger("bench.samples", 50);
+
+   public static void main(String[] args) {
+      int[] costs = { 10000, 30000, 65536, 100000, 200000 };
+      if (args.length > 0) {
+         costs = new int[args.length];
+         for (int i = 0; i < args.length; ++i)
+            costs[i] = Integer.parseInt(args[i]);
+      }
+      System.out.println("PBKDF2-HMAC-" + PasswordHasher.PRF + ", " + SAMPLES + " samples per cost");
+      System.out.println(String.format("%10s %10s %10s %10s %12s", "iterations", "mean ms", "p50 ms", "p99 ms",
+            "logins/sec"));
+      for (int cost : costs)
+         run(cost);
+   }// end main
+
+   private static void run(int iterations) {
+      String stored = PasswordHasher.hash("correct horse", iterations);
+      for (int i = 0; i < WARMUP; ++i)
+         PasswordHasher.matches("correct horse", stored);
+
+      double[] ms = new double[SAMPLES];
+      double total = 0;
+      for (int i = 0; i < SAMPLES; ++i) {
+         long start = System.nanoTime();
+         if (!PasswordHasher.matches("correct horse", stored))
+            throw new IllegalStateException("verification failed");
+         ms[i] = (System.nanoTime() - start) / 1e6;
+         total += ms[i];
+      }
+      Arrays.sort(ms);
+      double mean = total / SAMPLES;
+      System.out.println(String.format("%10d %10.2f %10.2f %10.2f %12.1f", iterations, mean,
+            percentile(ms, 0.50), percentile(ms, 0.99), 1000.0 / mean));
+   }// end run
+
+   private static double percentile(double[] sorted, double p) {
+      int i = (int) Math.ceil(p * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+   }// end percentile
+
+}// end PasswordHashBenchmark
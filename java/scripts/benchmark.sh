@@ -0,0 +1,15 @@
+#!/bin/bash
+#compiles the program and benchmarks, then runs one benchmark class
+#usage: benchmark.sh <BenchmarkClass> [args...]
+#e.g.   benchmark.sh CafeBenchmark $USER"_DB" $PGPORT $USER LogIn PlaceOrder
+#CafeBenchmark expects a database seeded by sql/scripts/create_db.sh
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java $DIR/../bench/*.java
+
+BENCH=$1
+shift
+java -Dbench.dataDir=$DIR/../../data -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar $BENCH "$@"
@@ -0,0 +1,15 @@
+#!/bin/bash
+#compiles the program and the tests, then runs every test class
+#the tests need no database
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java $DIR/../test/*.java || exit 1
+
+STATUS=0
+for TEST in $DIR/../test/*Test.java; do
+   java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar $(basename $TEST .java) || STATUS=1
+done
+exit $STATUS
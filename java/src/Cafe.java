@@ -10,18 +10,23 @@
  *
  */
 
-import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -30,13 +35,63 @@ import java.util.ArrayList;
  */
 public class Cafe {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by all callers.
+   private ConnectionPool _pool = null;
+
+   // timings of the statements run through the execute methods.
+   private QueryMetrics _metrics = null;
+
+   // statements that ran longer than the slow query threshold.
+   private SlowQueryLog _slowQueries = null;
+
+   // in-memory copy of the Menu table.
+   private MenuCache _menuCache = null;
+
+   // order ids reserved ahead of time from the orders sequence.
+   private OrderIdAllocator _orderIds = null;
+
+   // items the kitchen still has to make, started on first use.
+   private KitchenQueue _kitchen = null;
+
+   // buffered item status changes, null unless cafe.statusBuffer.enabled is set.
+   private StatusWriteBuffer _statusBuffer = null;
+
+   // recently authenticated users, by login.
+   private final SessionCache _sessions = new SessionCache();
+
+   // hashes and checks user passwords off the session threads.
+   private final PasswordHasher _passwords = new PasswordHasher();
+
+   // the operations behind the menus, free of console input and output.
+   private final MenuService _menuService = new MenuService(this);
+   private final UserService _userService = new UserService(this);
+   private final OrderService _orderService = new OrderService(this);
+
+   // parameters of plain SQL statements.
+   private static final Object[] NO_PARAMS = new Object[0];
+
+   // numbers the cursors of executeQueryAndStream so no two calls share a name.
+   private static final AtomicLong CURSORS = new AtomicLong();
+
+   // item status values, in the order an item moves through them.
+   static final String STATUS_NOT_STARTED = "Hasn't started";
+   static final String STATUS_STARTED = "Started";
+   static final String STATUS_FINISHED = "Finished";
+
+   // orders shown per page of the order history.
+   static final int HISTORY_PAGE_SIZE = Integer.getInteger("cafe.history.pageSize", 10);
+
+   // unpaid orders listed at once on the payment screen.
+   static final int PAYMENT_LIST_SIZE = Integer.getInteger("cafe.payment.listSize", 50);
+
+   // items still being worked on, for the kitchen queue.
+   static final String KITCHEN_QUEUE_QUERY = "SELECT orderid, itemName, lastUpdated, status, comments "
+         + "FROM ItemStatus WHERE status IN (?, ?) ORDER BY status, lastUpdated";
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
-   static BufferedReader in = new BufferedReader(
-         new InputStreamReader(System.in));
+   // In server mode each terminal session reads through it from its own socket.
+   static BufferedReader in = new SessionConsole.Reader();
 
    /**
     * Creates a new instance of Cafe
@@ -57,8 +112,21 @@ public class Cafe {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // set up the connection pool and obtain a first physical connection
+         this._pool = new ConnectionPool(url, user, passwd);
+         this._metrics = new QueryMetrics(this._pool);
+         this._metrics.start();
+         this._slowQueries = new SlowQueryLog(this);
+         this._pool.release(borrow());
+
+         // load the menu so browsing it needs no round-trip
+         this._menuCache = new MenuCache(this);
+         this._menuCache.start();
+         this._orderIds = new OrderIdAllocator(this);
+         if (StatusWriteBuffer.ENABLED) {
+            this._statusBuffer = new StatusWriteBuffer(this);
+            this._statusBuffer.start();
+         }
          System.out.println("Done");
       } catch (Exception e) {
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -75,14 +143,51 @@ public class Cafe {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate(String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         // creates a statement object
+         Statement stmt = conn.getConnection().createStatement();
 
-      // issues the update instruction
-      stmt.executeUpdate(sql);
+         // issues the update instruction
+         rows = stmt.executeUpdate(sql);
 
-      // close the instruction
-      stmt.close();
+         // close the instruction
+         stmt.close();
+      } catch (SQLException e) {
+         conn.markSuspect();
+         throw e;
+      } finally {
+         observe(QueryMetrics.template(sql), sql, NO_PARAMS, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeUpdate
+
+   /**
+    * Method to execute a parameterized update SQL statement through the
+    * prepared statement cache of the borrowed connection.
+    *
+    * @param sql    the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate(String sql, Object... params) throws SQLException {
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         PreparedStatement stmt = prepare(conn, sql, params);
+         rows = stmt.executeUpdate();
+         return (int) rows;
+      } catch (SQLException e) {
+         discard(conn, sql);
+         throw e;
+      } finally {
+         observe(sql, sql, params, start, rows);
+         this._pool.release(conn);
+      }
    }// end executeUpdate
 
    /**
@@ -95,38 +200,55 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
-
-      /*
-       ** obtains the metadata object for the returned result set. The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData();
-      int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         // creates a statement object
+         Statement stmt = conn.getConnection().createStatement();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery(query);
+         int rowCount = printResult(rs);
+         stmt.close();
+         rows = rowCount;
+         return rowCount;
+      } catch (SQLException e) {
+         conn.markSuspect();
+         throw e;
+      } finally {
+         observe(QueryMetrics.template(query), query, NO_PARAMS, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeQueryAndPrintResult
 
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = false; // set to false to not get col name
-      while (rs.next()) {
-         if (outputHeader) {
-            for (int i = 1; i <= numCol; i++) {
-               System.out.print(rsmd.getColumnName(i) + "\t");
-            }
-            System.out.println();
-            outputHeader = false;
-         }
-         for (int i = 1; i <= numCol; ++i)
-            System.out.print(rs.getString(i) + "\n"); // newline instead of tab
-         // System.out.println ();
-         ++rowCount;
-      } // end while
-      stmt.close();
-      return rowCount;
-   }// end executeQuery
+   /**
+    * Method to execute a parameterized query and output the results to
+    * standard out.
+    *
+    * @param query  the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult(String query, Object... params) throws SQLException {
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         ResultSet rs = prepare(conn, query, params).executeQuery();
+         int rowCount = printResult(rs);
+         rs.close();
+         rows = rowCount;
+         return rowCount;
+      } catch (SQLException e) {
+         discard(conn, query);
+         throw e;
+      } finally {
+         observe(query, query, params, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeQueryAndPrintResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT). This
@@ -138,88 +260,493 @@ public class Cafe {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         // creates a statement object
+         Statement stmt = conn.getConnection().createStatement();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery(query);
+         List<List<String>> result = collectResult(rs);
+         stmt.close();
+         rows = result.size();
+         return result;
+      } catch (SQLException e) {
+         conn.markSuspect();
+         throw e;
+      } finally {
+         observe(QueryMetrics.template(query), query, NO_PARAMS, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a parameterized query and return the results as a
+    * list of records. Each record in turn is a list of attribute values,
+    * with text values stripped of char(n) padding
+    *
+    * @param query  the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult(String query, Object... params) throws SQLException {
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         ResultSet rs = prepare(conn, query, params).executeQuery();
+         List<List<String>> result = collectResult(rs);
+         rs.close();
+         rows = result.size();
+         return result;
+      } catch (SQLException e) {
+         discard(conn, query);
+         throw e;
+      } finally {
+         observe(query, query, params, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeQueryAndReturnResult
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT). This
+    * method issues the query to the DBMS and returns the number of results
+    *
+    * @param query the input query string
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery(String query) throws SQLException {
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         // creates a statement object
+         Statement stmt = conn.getConnection().createStatement();
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery(query);
+         int rowCount = countRows(rs);
+         stmt.close();
+         rows = rowCount;
+         return rowCount;
+      } catch (SQLException e) {
+         conn.markSuspect();
+         throw e;
+      } finally {
+         observe(QueryMetrics.template(query), query, NO_PARAMS, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeQuery
+
+   /**
+    * Method to execute a parameterized query and return the number of
+    * results
+    *
+    * @param query  the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery(String query, Object... params) throws SQLException {
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         ResultSet rs = prepare(conn, query, params).executeQuery();
+         int rowCount = countRows(rs);
+         rs.close();
+         rows = rowCount;
+         return rowCount;
+      } catch (SQLException e) {
+         discard(conn, query);
+         throw e;
+      } finally {
+         observe(query, query, params, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeQuery
 
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+   /**
+    * Method to check whether a parameterized query returns any row. The
+    * query is wrapped in EXISTS so the server stops at the first match and
+    * only a single boolean is transferred.
+    *
+    * @param query  the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return true if the query returns at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean executeExists(String query, Object... params) throws SQLException {
+      String exists = "SELECT EXISTS (" + query + ")";
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         ResultSet rs = prepare(conn, exists, params).executeQuery();
+         boolean found = rs.next() && rs.getBoolean(1);
+         rs.close();
+         rows = 1;
+         return found;
+      } catch (SQLException e) {
+         discard(conn, exists);
+         throw e;
+      } finally {
+         observe(exists, exists, params, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeExists
+
+   /**
+    * Method to execute a parameterized query and hand each row to a
+    * callback without holding the whole result in memory. The query runs
+    * through a server-side cursor that is read fetchSize rows at a time,
+    * so arbitrarily large results (e.g. months of Orders) can be scanned.
+    *
+    * @param query     the input query string with ? placeholders
+    * @param fetchSize the number of rows transferred per round-trip
+    * @param handler   the callback receiving each row
+    * @param params    the values bound to the placeholders, in order
+    * @return the number of rows handed to the callback
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStream(String query, int fetchSize, RowHandler handler, Object... params)
+         throws SQLException {
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         Connection connection = conn.getConnection();
+         // cursors only live inside a transaction, the pool rolls back on release
+         connection.setAutoCommit(false);
+
+         String cursor = "cafe_stream_" + CURSORS.incrementAndGet();
+         PreparedStatement declare = connection.prepareStatement("DECLARE " + cursor + " NO SCROLL CURSOR FOR "
+               + query);
+         try {
+            bind(declare, params);
+            declare.executeUpdate();
+         } finally {
+            declare.close();
+         }
 
+         int rowCount = 0;
+         Statement fetch = connection.createStatement();
+         try {
+            String fetchNext = "FETCH FORWARD " + Math.max(1, fetchSize) + " FROM " + cursor;
+            boolean streaming = true;
+            while (streaming) {
+               ResultSet rs = fetch.executeQuery(fetchNext);
+               int fetched = 0;
+               while (streaming && rs.next()) {
+                  ++fetched;
+                  ++rowCount;
+                  streaming = handler.handleRow(rs);
+               }
+               rs.close();
+               if (fetched == 0)
+                  streaming = false;
+            }
+            fetch.executeUpdate("CLOSE " + cursor);
+         } finally {
+            fetch.close();
+         }
+         connection.commit();
+         rows = rowCount;
+         return rowCount;
+      } catch (Throwable e) {
+         // also when the handler threw, the cursor and transaction are left open
+         conn.markSuspect();
+         throw e;
+      } finally {
+         observe(query, query, params, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeQueryAndStream
+
+   /**
+    * Method to run several statements as one transaction on a single
+    * borrowed connection. The transaction is committed when the callback
+    * returns and rolled back when it throws.
+    *
+    * @param work the statements to run
+    * @return the value returned by the callback
+    * @throws java.sql.SQLException when the work failed and was rolled back
+    */
+   public <T> T executeInTransaction(TransactionCallback<T> work) throws SQLException {
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         conn.getConnection().setAutoCommit(false);
+         T result = work.run(conn);
+         conn.getConnection().commit();
+         rows = 0;
+         return result;
+      } catch (SQLException e) {
+         // the pool rolls back what was left uncommitted
+         conn.getStatementCache().clear();
+         conn.markSuspect();
+         throw e;
+      } catch (RuntimeException e) {
+         conn.getStatementCache().clear();
+         conn.markSuspect();
+         throw e;
+      } finally {
+         String name = "<transaction " + work.getClass().getName() + ">";
+         observe(name, name, NO_PARAMS, start, rows);
+         this._pool.release(conn);
+      }
+   }// end executeInTransaction
+
+   /* Records a finished statement in the metrics and the slow query log */
+   private void observe(String template, String sql, Object[] params, long start, long rows) {
+      this._metrics.record(template, start, rows);
+      this._slowQueries.check(template, sql, params, start);
+   }// end observe
+
+   /* Borrows a pooled connection, recording how long the wait took */
+   private PooledConnection borrow() throws SQLException {
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+         PooledConnection conn = this._pool.borrow();
+         failed = false;
+         return conn;
+      } finally {
+         this._metrics.recordPoolWait(start, failed);
+      }
+   }// end borrow
+
+   /*
+    * Fetches the cached statement for the SQL text on the borrowed connection
+    * and binds the parameters to it
+    */
+   private static PreparedStatement prepare(PooledConnection conn, String sql, Object[] params)
+         throws SQLException {
+      PreparedStatement stmt = conn.getStatementCache().prepare(sql);
+      bind(stmt, params);
+      return stmt;
+   }// end prepare
+
+   /* Binds the parameters to the placeholders of the statement, in order */
+   private static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         if (params[i] == null)
+            stmt.setNull(i + 1, Types.VARCHAR);
+         else
+            stmt.setObject(i + 1, params[i]);
+      }
+   }// end bind
+
+   /*
+    * Drops a statement that failed from the cache and has the pool check the
+    * connection before it is reused
+    */
+   private static void discard(PooledConnection conn, String sql) {
+      conn.getStatementCache().evict(sql);
+      conn.markSuspect();
+   }// end discard
+
+   /* Outputs every row of the result set to standard out */
+   private static int printResult(ResultSet rs) throws SQLException {
       /*
        ** obtains the metadata object for the returned result set. The metadata
        ** contains row and column info.
        */
       ResultSetMetaData rsmd = rs.getMetaData();
       int numCol = rsmd.getColumnCount();
-      int rowCount = 0;
+      String[] columns = new String[numCol];
+      for (int i = 1; i <= numCol; ++i)
+         columns[i - 1] = rsmd.getColumnName(i);
+
+      // iterates through the result set and renders it, flushing once per page.
+      ResultRenderer renderer = ResultRenderer.forStandardOut();
+      renderer.begin(columns);
+      String[] values = new String[numCol];
+      while (rs.next()) {
+         for (int i = 1; i <= numCol; ++i)
+            values[i - 1] = Columns.text(rs, i);
+         renderer.row(values);
+      } // end while
+      return renderer.end();
+   }// end printResult
+
+   /* Saves every row of the result set as a list of attribute values */
+   private static List<List<String>> collectResult(ResultSet rs) throws SQLException {
+      ResultSetMetaData rsmd = rs.getMetaData();
+      int numCol = rsmd.getColumnCount();
 
       // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
       List<List<String>> result = new ArrayList<List<String>>();
       while (rs.next()) {
          List<String> record = new ArrayList<String>();
          for (int i = 1; i <= numCol; ++i)
-            record.add(rs.getString(i));
+            record.add(Columns.text(rs, i));
          result.add(record);
-         ++rowCount; // *****ADDED FOR TEST FIX IF NEEDED */
       } // end while
-      stmt.close();
       return result;
-   }// end executeQueryAndReturnResult
-
-   /**
-    * Method to execute an input query SQL instruction (i.e. SELECT). This
-    * method issues the query to the DBMS and returns the number of results
-    *
-    * @param query the input query string
-    * @return the number of rows returned
-    * @throws java.sql.SQLException when failed to execute the query
-    */
-   public int executeQuery(String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery(query);
+   }// end collectResult
 
+   /* Counts the rows of the result set */
+   private static int countRows(ResultSet rs) throws SQLException {
       int rowCount = 0;
 
       // iterates through the result set and count nuber of results.
       while (rs.next()) {
          rowCount++;
       } // end while
-      stmt.close();
       return rowCount;
-   }
+   }// end countRows
 
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys. Note that currval is
+    * tracked per database session, so with pooled connections it is only
+    * meaningful when nextval ran on the same borrowed connection.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-      Statement stmt = this._connection.createStatement();
-
-      ResultSet rs = stmt.executeQuery(String.format("Select currval('%s')", sequence));
-      if (rs.next())
-         return rs.getInt(1);
-      return -1;
+      String query = "Select currval(CAST(? AS regclass))";
+      PooledConnection conn = borrow();
+      long start = System.nanoTime();
+      long rows = -1;
+      try {
+         ResultSet rs = prepare(conn, query, new Object[] { sequence }).executeQuery();
+         int value = -1;
+         if (rs.next())
+            value = rs.getInt(1);
+         rs.close();
+         rows = 1;
+         return value;
+      } catch (SQLException e) {
+         discard(conn, query);
+         throw e;
+      } finally {
+         observe(query, query, new Object[] { sequence }, start, rows);
+         this._pool.release(conn);
+      }
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * @return the in-memory copy of the Menu table
+    */
+   public MenuCache getMenuCache() {
+      return this._menuCache;
+   }// end getMenuCache
+
+   /**
+    * @return the timings of the statements run so far
+    */
+   public QueryMetrics getMetrics() {
+      return this._metrics;
+   }// end getMetrics
+
+   /**
+    * @return the allocator handing out new order ids
+    */
+   public OrderIdAllocator getOrderIds() {
+      return this._orderIds;
+   }// end getOrderIds
+
+   /**
+    * @return the cache of recently authenticated users
+    */
+   public SessionCache getSessions() {
+      return this._sessions;
+   }// end getSessions
+
+   /**
+    * @return the password hasher
+    */
+   public PasswordHasher getPasswords() {
+      return this._passwords;
+   }// end getPasswords
+
+   /**
+    * @return the menu operations
+    */
+   public MenuService getMenuService() {
+      return this._menuService;
+   }// end getMenuService
+
+   /**
+    * @return the account, login and favorite item operations
+    */
+   public UserService getUserService() {
+      return this._userService;
+   }// end getUserService
+
+   /**
+    * @return the order and payment operations
+    */
+   public OrderService getOrderService() {
+      return this._orderService;
+   }// end getOrderService
+
+   /**
+    * @return the kitchen queue, subscribing to status changes on first use
+    * @throws java.sql.SQLException when the queue could not be started
+    */
+   public synchronized KitchenQueue getKitchenQueue() throws SQLException {
+      if (this._kitchen == null) {
+         KitchenQueue kitchen = new KitchenQueue(this);
+         kitchen.start();
+         this._kitchen = kitchen;
+      }
+      return this._kitchen;
+   }// end getKitchenQueue
+
+   /**
+    * @return the write-behind buffer for item status changes, or null when
+    *         changes are written immediately
+    */
+   public StatusWriteBuffer getStatusBuffer() {
+      return this._statusBuffer;
+   }// end getStatusBuffer
+
+   /**
+    * Opens a connection outside the pool, see ConnectionPool.openDedicated.
+    *
+    * @return a new physical connection the caller must close
+    * @throws java.sql.SQLException when the connection could not be opened
+    */
+   public Connection openDedicatedConnection() throws SQLException {
+      return this._pool.openDedicated();
+   }// end openDedicatedConnection
+
+   /**
+    * Method to close the pooled physical connections if they are open.
     */
    public void cleanup() {
-      try {
-         if (this._connection != null) {
-            this._connection.close();
-         } // end if
-      } catch (SQLException e) {
-         // ignored.
-      } // end try
+      if (this._menuCache != null) {
+         this._menuCache.stop();
+      } // end if
+      synchronized (this) {
+         if (this._kitchen != null)
+            this._kitchen.stop();
+      }
+      this._passwords.shutdown();
+      // buffered status changes must reach the database before the pool closes
+      if (this._statusBuffer != null) {
+         this._statusBuffer.close();
+      } // end if
+      if (this._metrics != null) {
+         this._metrics.stop();
+      } // end if
+      if (this._slowQueries != null) {
+         this._slowQueries.close();
+      } // end if
+      if (this._pool != null) {
+         this._pool.close();
+      } // end if
    }// end cleanup
 
    /**
@@ -229,17 +756,22 @@ public class Cafe {
     *             file>
     */
    public static void main(String[] args) {
-      if (args.length != 3) {
+      boolean serve = args.length == 5 && args[3].equals("--serve");
+      boolean importUsers = args.length == 5 && args[3].equals("--import-users");
+      boolean checkPlans = args.length == 4 && args[3].equals("--check-plans");
+      boolean load = args.length == 5 && args[3].equals("--load");
+      if (args.length != 3 && !serve && !importUsers && !checkPlans && !load) {
          System.err.println(
                "Usage: " +
                      "java [-classpath <classpath>] " +
                      Cafe.class.getName() +
-                     " <dbname> <port> <user>");
+                     " <dbname> <port> <user> [--serve <listen port> | --import-users <file> | --check-plans | --load <users file>]");
          return;
       } // end if
 
       Greeting();
       Cafe esql = null;
+      int status = 0;
       try {
          // use postgres JDBC driver.
          Class.forName("org.postgresql.Driver").newInstance();
@@ -250,6 +782,53 @@ public class Cafe {
          String user = args[2];
          esql = new Cafe(dbname, dbport, user, "");
 
+         if (serve) {
+            // serve many terminals from this process
+            final Cafe shared = esql;
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+               public void run() {
+                  shared.cleanup();
+               }
+            });
+            new CafeServer(esql, Integer.parseInt(args[4])).serve();
+         } else if (importUsers) {
+            // load a users file in bulk instead of running the menus
+            System.out.println("Imported users: " + new UserImporter(esql).importFile(args[4]));
+         } else if (checkPlans) {
+            // fail when a hot query no longer has a usable index
+            if (!new PlanCheck(esql).run())
+               status = 1;
+         } else if (load) {
+            // replay the role sessions with many virtual users and report
+            if (!new LoadGenerator(esql).run(args[4]))
+               status = 1;
+         } else {
+            RunSession(esql);
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         status = 1;
+      } finally {
+         // make sure to cleanup the created table and close the connection.
+         try {
+            if (esql != null) {
+               System.out.print("Disconnecting from database...");
+               esql.cleanup();
+               System.out.println("Done\n\nBye !");
+            } // end if
+         } catch (Exception e) {
+            // ignored.
+         } // end try
+      } // end try
+      if (status != 0)
+         System.exit(status);
+   }// end main
+
+   /*
+    * Runs the main menu for one terminal until the user exits
+    **/
+   public static void RunSession(Cafe esql) {
+      try {
          boolean keepon = true;
          while (keepon) {
             // These are sample SQL statements
@@ -260,15 +839,16 @@ public class Cafe {
             System.out.println("9. < EXIT");
 
             String authorizedUser = null;
-            String userType = null;
+            UserSession session = null;
 
             switch (readChoice()) {
                case 1:
                   CreateUser(esql);
                   break;
                case 2:
-                  authorizedUser = LogIn(esql);
-                  userType = CheckUserType(esql, authorizedUser);
+                  session = LogIn(esql);
+                  if (session != null)
+                     authorizedUser = session.getLogin();
                   break;
                case 9:
                   keepon = false;
@@ -279,23 +859,13 @@ public class Cafe {
             }// end switch
 
             if (authorizedUser != null) {
-               boolean isCustomer = false;
-               boolean isEmployee = false;
-               boolean isManager = false;
-               if (userType.equals("Customer") || userType.equals("Customer ") || userType.equals(" Customer")
-                     || userType.equals(" Customer ")) {
-                  isCustomer = true;
-               }
-               if (userType.equals("Employee") || userType.equals(" Employee") || userType.equals("Employee ")
-                     || userType.equals(" Employee ")) {
-                  isEmployee = true;
-               }
-               if (userType.equals("Manager ") || userType.equals(" Manager ") || userType.equals("Manager")
-                     || userType.equals(" Manager")) {
-                  isManager = true;
-               }
+               boolean isCustomer = session.getRole() == Role.CUSTOMER;
+               boolean isEmployee = session.getRole() == Role.EMPLOYEE;
+               boolean isManager = session.getRole() == Role.MANAGER;
 
                while (isCustomer) {
+                  if (!HasRole(esql, authorizedUser, Role.CUSTOMER))
+                     break;
                   System.out.println("MAIN MENU");
                   System.out.println("---------");
                   System.out.println("1. View Menu");
@@ -313,10 +883,13 @@ public class Cafe {
                         authorizedUser = UpdateProfile(esql, authorizedUser, isManager);
                         break;
                      case 3:
-                        PlaceOrder(esql);
+                        PlaceOrder(esql, authorizedUser);
                         break;
                      case 4:
-                        UpdateOrder(esql);
+                        UpdateOrder(esql, session);
+                        break;
+                     case 5:
+                        ViewRecentOrders(esql, authorizedUser);
                         break;
                      case 9:
                         isCustomer = false;
@@ -328,6 +901,8 @@ public class Cafe {
                } // end customer menu while
 
                while (isEmployee) {
+                  if (!HasRole(esql, authorizedUser, Role.EMPLOYEE))
+                     break;
                   System.out.println("MAIN MENU");
                   System.out.println("---------");
                   System.out.println("1. View Menu");
@@ -336,6 +911,7 @@ public class Cafe {
                   System.out.println("4. Update an Order");
                   System.out.println("5. View Your Recent Orders");
                   System.out.println("6. Update Customer Order Payment");
+                  System.out.println("7. Kitchen Queue");
                   System.out.println(".........................");
                   System.out.println("9. Log out");
                   switch (readChoice()) {
@@ -346,14 +922,19 @@ public class Cafe {
                         authorizedUser = UpdateProfile(esql, authorizedUser, isManager);
                         break;
                      case 3:
-                        PlaceOrder(esql);
+                        PlaceOrder(esql, authorizedUser);
                         break;
                      case 4:
-                        UpdateOrder(esql);
+                        UpdateOrder(esql, session);
                         break;
                      case 5:
+                        ViewRecentOrders(esql, authorizedUser);
                         break;
                      case 6:
+                        UpdateOrderPayment(esql);
+                        break;
+                     case 7:
+                        ViewKitchenQueue(esql);
                         break;
                      case 9:
                         isEmployee = false;
@@ -365,6 +946,8 @@ public class Cafe {
                } // end employee menu while
 
                while (isManager) {
+                  if (!HasRole(esql, authorizedUser, Role.MANAGER))
+                     break;
                   System.out.println("MAIN MENU");
                   System.out.println("---------");
                   System.out.println("1. View Menu");
@@ -375,6 +958,7 @@ public class Cafe {
                   System.out.println("6. Update an Order");
                   System.out.println("7. View Your Recent Orders");
                   System.out.println("8. Update Customer Order Payment");
+                  System.out.println("10. Kitchen Queue");
                   System.out.println(".........................");
                   System.out.println("9. Log out");
                   switch (readChoice()) {
@@ -391,14 +975,19 @@ public class Cafe {
                         UpdateOtherUserProfile(esql, isManager);
                         break;
                      case 5:
-                        PlaceOrder(esql);
+                        PlaceOrder(esql, authorizedUser);
                         break;
                      case 6:
-                        UpdateOrder(esql);
+                        UpdateOrder(esql, session);
                         break;
                      case 7:
+                        ViewRecentOrders(esql, authorizedUser);
                         break;
                      case 8:
+                        UpdateOrderPayment(esql);
+                        break;
+                     case 10:
+                        ViewKitchenQueue(esql);
                         break;
                      case 9:
                         isManager = false;
@@ -412,19 +1001,25 @@ public class Cafe {
          } // end while
       } catch (Exception e) {
          System.err.println(e.getMessage());
-      } finally {
-         // make sure to cleanup the created table and close the connection.
-         try {
-            if (esql != null) {
-               System.out.print("Disconnecting from database...");
-               esql.cleanup();
-               System.out.println("Done\n\nBye !");
-            } // end if
-         } catch (Exception e) {
-            // ignored.
-         } // end try
-      } // end try
-   }// end main
+      }
+   }// end RunSession
+
+   /*
+    * Re-reads the user's role through the session cache before each menu, so
+    * a role changed by a manager ends the menu of the old role instead of
+    * lasting until logout
+    **/
+   public static boolean HasRole(Cafe esql, String login, Role role) {
+      try {
+         if (esql.getUserService().getRole(login) == role)
+            return true;
+         System.out.println("Your account has changed, please log in again.");
+         return false;
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+         return false;
+      }
+   }// end HasRole
 
    public static void Greeting() {
       System.out.println(
@@ -443,8 +1038,18 @@ public class Cafe {
       // returns only if a correct value is given.
       do {
          System.out.print("Please select from the above options: ");
+         String line;
+         try {
+            line = in.readLine();
+         } catch (IOException e) {
+            line = null;
+         } // end try
+         if (line == null) {
+            // the terminal was closed, give up instead of asking forever
+            throw new IllegalStateException("Input closed");
+         }
          try { // read the integer, parse it and break.
-            input = Integer.parseInt(in.readLine());
+            input = Integer.parseInt(line.trim());
             break;
          } catch (Exception e) {
             System.out.println("Your input is invalid!");
@@ -478,22 +1083,17 @@ public class Cafe {
             boolean checkPhone = CheckPhoneNumber(phone);
             if (checkPhone) {
                // makes it fit with database structure
-               phone = FixPhoneNumber(phone);
+               phone = UserService.formatPhoneNumber(phone);
             }
             if (!PhoneNumberExists(esql, phone)) {
                enteringPhone = false;
             }
          }
 
-         String type = "Customer";
-         String favItems = "";
-
-         String query = String.format(
-               "INSERT INTO USERS (phoneNum, login, password, favItems, type) VALUES ('%s','%s','%s','%s','%s')", phone,
-               login, password, favItems, type);
-
-         esql.executeUpdate(query);
-         System.out.println("User successfully created!");
+         if (esql.getUserService().createUser(login, password, phone))
+            System.out.println("User successfully created!");
+         else
+            System.out.println("The login or phone number was taken in the meantime, user not created.");
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -502,22 +1102,19 @@ public class Cafe {
    /*
     * Check log in credentials for an existing user
     * 
-    * @return User login or null is the user does not exist
+    * @return User session or null is the user does not exist
     **/
-   public static String LogIn(Cafe esql) {
+   public static UserSession LogIn(Cafe esql) {
       try {
          System.out.print("\tEnter user login (CASE SENSITIVE!): ");
          String login = in.readLine();
          System.out.print("\tEnter user password(CASE SENSITIVE!): ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0)
-            return login;
-         else
+         UserSession session = esql.getUserService().authenticate(login, password);
+         if (session == null)
             System.out.print("\tNo such user exists!");
-         return null;
+         return session;
       } catch (Exception e) {
          System.err.println(e.getMessage());
          return null;
@@ -583,9 +1180,10 @@ public class Cafe {
                      break;
                }
             } else {
-               String query = String.format("DELETE FROM menu WHERE itemName = '%s'", itemName);
-               esql.executeUpdate(query);
-               System.out.println(itemName + " successfully deleted off menu!");
+               if (esql.getMenuService().deleteItem(itemName))
+                  System.out.println(itemName + " successfully deleted off menu!");
+               else
+                  System.out.println(itemName + " was already deleted.");
                confirmingItemName = false;
             }
          }
@@ -603,7 +1201,7 @@ public class Cafe {
          String price = "";
          String description = "";
          String imageURL = "";
-         String query = "";
+         MenuService menu = esql.getMenuService();
 
          boolean confirmingItemName = true;
          boolean editingItem = false;
@@ -611,7 +1209,10 @@ public class Cafe {
          while (confirmingItemName) {
             System.out.println("Enter item name to edit: ");
             itemName = in.readLine();
-            if (!ItemOnMenu(esql, itemName)) {
+            // read the row from the database, not the cache, since it is about to change
+            MenuItem item = menu.fetch(itemName);
+            if (item == null) {
+               System.out.println(itemName + " is not on the menu!");
                System.out.println("1. Enter another item name");
                System.out.println("2. Go back to menu updating options");
                switch (readChoice()) {
@@ -626,22 +1227,13 @@ public class Cafe {
                      break;
                }
             } else {
+               System.out.println(itemName + " is on the menu!");
                editingItem = true;
-               String findType = String.format("SELECT type FROM Menu WHERE itemName = '%s'", itemName);
-               List<List<String>> getType = esql.executeQueryAndReturnResult(findType);
-               type = getType.get(0).get(0);
-
-               String findPrice = String.format("SELECT price FROM Menu WHERE itemName = '%s'", itemName);
-               List<List<String>> getPrice = esql.executeQueryAndReturnResult(findPrice);
-               price = getPrice.get(0).get(0);
-
-               String findDescription = String.format("SELECT description FROM Menu WHERE itemName = '%s'", itemName);
-               List<List<String>> getDescription = esql.executeQueryAndReturnResult(findDescription);
-               price = getDescription.get(0).get(0);
-
-               String findImageURL = String.format("SELECT imageURL FROM Menu WHERE itemName = '%s'", itemName);
-               List<List<String>> getImageURL = esql.executeQueryAndReturnResult(findImageURL);
-               price = getImageURL.get(0).get(0);
+               itemName = item.getItemName();
+               type = item.getType();
+               price = String.valueOf(item.getPrice());
+               description = item.getDescription();
+               imageURL = item.getImageURL();
                confirmingItemName = false;
             }
 
@@ -661,9 +1253,10 @@ public class Cafe {
                         System.out.print(itemName + "'s name not updated.");
                         break;
                      }
-                     query = String.format("UPDATE menu SET itemName = '%s' WHERE itemName = '%s'", updatedName,
-                           itemName);
-                     esql.executeUpdate(query);
+                     if (!menu.renameItem(itemName, updatedName)) {
+                        System.out.print(itemName + "'s name not updated.");
+                        break;
+                     }
                      System.out.println("Successfully updated old item name " + itemName + " to " + updatedName);
                      editingItem = false;
                      break;
@@ -689,9 +1282,10 @@ public class Cafe {
                               System.out.println("Unrecognized choice!");
                               break;
                         }
-                        query = String.format("UPDATE menu SET type = '%s' WHERE itemName = '%s'", type, itemName);
-                        esql.executeUpdate(query);
-                        System.out.println("Successfully updated type!");
+                        if (menu.updateType(itemName, type))
+                           System.out.println("Successfully updated type!");
+                        else
+                           System.out.println(itemName + " was deleted in the meantime.");
                         editingType = false;
                      }
                      editingItem = false;
@@ -703,28 +1297,30 @@ public class Cafe {
                      price = "." + price;
                      System.out.println("Enter updated dollar portion of item price: ");
                      price = in.readLine() + price;
-                     query = String.format("UPDATE menu SET price = '%s' WHERE itemName = '%s'", price, itemName);
-                     esql.executeUpdate(query);
-                     System.out.println("Successfully updated price!");
+                     if (menu.updatePrice(itemName, Float.parseFloat(price)))
+                        System.out.println("Successfully updated price!");
+                     else
+                        System.out.println(itemName + " was deleted in the meantime.");
                      editingItem = false;
                      break;
 
                   case 4: // edit description
                      System.out.println("Enter updated item description: ");
                      description = in.readLine();
-                     query = String.format("UPDATE menu SET description = '%s' WHERE itemName = '%s'", description,
-                           itemName);
-                     esql.executeUpdate(query);
-                     System.out.println("Successfully updated description!");
+                     if (menu.updateDescription(itemName, description))
+                        System.out.println("Successfully updated description!");
+                     else
+                        System.out.println(itemName + " was deleted in the meantime.");
                      editingItem = false;
                      break;
 
                   case 5: // edit imageURL
                      System.out.println("Enter updated image URL: ");
                      imageURL = in.readLine();
-                     query = String.format("UPDATE menu SET imageURL = '%s' WHERE itemName = '%s'", imageURL, itemName);
-                     esql.executeUpdate(query);
-                     System.out.println("Successfully updated image URL!");
+                     if (menu.updateImageURL(itemName, imageURL))
+                        System.out.println("Successfully updated image URL!");
+                     else
+                        System.out.println(itemName + " was deleted in the meantime.");
                      editingItem = false;
                      break;
 
@@ -819,12 +1415,11 @@ public class Cafe {
                System.out.println("Enter item image URL:");
                imageURL = in.readLine();
 
-               String query = String.format(
-                     "INSERT INTO Menu (itemName, type, price, description, imageURL) VALUES ('%s','%s','%s','%s','%s')",
-                     itemName, type, price, description, imageURL);
-               esql.executeUpdate(query);
-
-               System.out.println("New item successfully added to menu!");
+               MenuItem item = new MenuItem(itemName, type, Float.parseFloat(price), description, imageURL);
+               if (esql.getMenuService().addItem(item))
+                  System.out.println("New item successfully added to menu!");
+               else
+                  System.out.println(itemName + " was added to the menu in the meantime.");
                System.out.println();
 
                confirmingItemInfo = false;
@@ -876,13 +1471,23 @@ public class Cafe {
    /* Displays full menu */
    public static void ViewFullMenu(Cafe esql) {
       try {
-         String getInfo = String.format("SELECT * FROM Menu");
-         esql.executeQueryAndPrintResult(getInfo);
+         ResultRenderer renderer = ResultRenderer.forStandardOut();
+         renderer.begin(new String[] { "itemname", "type", "price", "description", "imageurl" });
+         for (MenuItem item : esql.getMenuService().getItems()) {
+            renderer.row(new String[] { item.getItemName(), item.getType(), String.valueOf(item.getPrice()),
+                  item.getDescription(), item.getImageURL() });
+         }
+         renderer.end();
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    }// end ViewFullMenu
 
+   /* Shows optional menu fields as blank instead of null */
+   public static String Display(String value) {
+      return value == null ? "" : value;
+   }// end Display
+
    /* Displays menu by item type selected */
    public static void MenuByItemType(Cafe esql) {
       try {
@@ -919,9 +1524,13 @@ public class Cafe {
             }
 
             if (confirmedType) {
-               String getInfo = String
-                     .format("SELECT itemName, price, description, imageURL FROM Menu WHERE type = '%s'", type);
-               esql.executeQueryAndPrintResult(getInfo);
+               ResultRenderer renderer = ResultRenderer.forStandardOut();
+               renderer.begin(new String[] { "itemname", "price", "description", "imageurl" });
+               for (MenuItem item : esql.getMenuService().getItemsByType(type)) {
+                  renderer.row(new String[] { item.getItemName(), String.valueOf(item.getPrice()),
+                        item.getDescription(), item.getImageURL() });
+               }
+               renderer.end();
 
                confirmingItemType = false;
 
@@ -932,27 +1541,6 @@ public class Cafe {
       }
    }// end MenuByItemType
 
-   /*
-    * Returns true is item type is on menu, returns false if item type is not on
-    * menu *NOT CURRENTLY IN USE*
-    */
-   public static boolean ItemTypeOnMenu(Cafe esql, String type) {
-      try {
-         String query = String.format("SELECT type FROM Menu WHERE itemName = '%s'", type);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0) {
-            System.out.println(type + " on the menu!");
-            return true;
-         } else {
-            System.out.println(type + " not on the menu!");
-            return false;
-         }
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
-         return false;
-      }
-   }// end ItemTypeOnMenu
-
    /* How to show items when getting input of item name */
    public static void MenuByItemName(Cafe esql) {
       try {
@@ -960,7 +1548,8 @@ public class Cafe {
          while (confirmingItemName) {
             System.out.println("Enter the item name you are looking for: ");
             String name = in.readLine();
-            if (!ItemOnMenu(esql, name)) {
+            MenuItem item = FindItemOnMenu(esql, name);
+            if (item == null) {
                System.out.println("1. Enter another item name");
                System.out.println("2. Go back to menu viewing options");
                switch (readChoice()) {
@@ -974,25 +1563,11 @@ public class Cafe {
                      break;
                }
             } else {
-               String getInfo = String.format("SELECT itemName FROM Menu WHERE itemName = '%s'", name);
-               System.out.print("Name: ");
-               esql.executeQueryAndPrintResult(getInfo);
-
-               getInfo = String.format("SELECT type FROM Menu WHERE itemName = '%s'", name);
-               System.out.print("Type: ");
-               esql.executeQueryAndPrintResult(getInfo);
-
-               getInfo = String.format("SELECT price FROM Menu WHERE itemName = '%s'", name);
-               System.out.print("Price: ");
-               esql.executeQueryAndPrintResult(getInfo);
-
-               getInfo = String.format("SELECT description FROM Menu WHERE itemName = '%s'", name);
-               System.out.print("Description: ");
-               esql.executeQueryAndPrintResult(getInfo);
-
-               getInfo = String.format("SELECT imageURL FROM Menu WHERE itemName = '%s'", name);
-               System.out.print("URL: ");
-               esql.executeQueryAndPrintResult(getInfo);
+               System.out.println("Name: " + item.getItemName());
+               System.out.println("Type: " + item.getType());
+               System.out.println("Price: " + item.getPrice());
+               System.out.println("Description: " + Display(item.getDescription()));
+               System.out.println("URL: " + Display(item.getImageURL()));
                confirmingItemName = false;
             }
          }
@@ -1003,45 +1578,29 @@ public class Cafe {
 
    /* Returns true if item name entered is in database, false otherwise */
    public static boolean ItemOnMenu(Cafe esql, String name) {
-      try {
-         String query = String.format("SELECT itemName FROM Menu WHERE itemName = '%s'", name);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0) {
-            System.out.println(name + " is on the menu!");
-            return true;
-         } else {
-            System.out.println(name + " is not on the menu!");
-            return false;
-         }
-      } catch (Exception e) {
-         System.err.println(e.getMessage());
-         return false;
-      }
+      return FindItemOnMenu(esql, name) != null;
    }
 
-   /* returns a string that states the users type after login */
-   public static String CheckUserType(Cafe esql, String authorizedUser) {
+   /* Returns the menu item with the name entered and says whether it was found */
+   public static MenuItem FindItemOnMenu(Cafe esql, String name) {
       try {
-         if (authorizedUser.equals(null)) {
-            return null;
+         MenuItem item = esql.getMenuService().find(name);
+         if (item != null) {
+            System.out.println(name + " is on the menu!");
          } else {
-            String findType = String.format("SELECT type FROM USERS WHERE login = '%s'", authorizedUser);
-            List<List<String>> getAccountType = esql.executeQueryAndReturnResult(findType);
-            String accountType = getAccountType.get(0).get(0);
-            return accountType;
+            System.out.println(name + " is not on the menu!");
          }
+         return item;
       } catch (Exception e) {
          System.err.println(e.getMessage());
          return null;
       }
-   }// end CheckUserType
+   }// end FindItemOnMenu
 
    /* returns boolean true if login is in db, false if login is not in db */
    public static boolean LoginExists(Cafe esql, String userLogin) {
       try {
-         String query = String.format("SELECT * FROM USERS WHERE login = '%s'", userLogin);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0) {
+         if (esql.getUserService().loginExists(userLogin)) {
             System.out.println("User login exists");
             return true;
          } else {
@@ -1054,21 +1613,6 @@ public class Cafe {
       }
    }// end LoginExists
 
-   /* Formats phone number */
-   public static String FixPhoneNumber(String userPhoneNumber) {
-      String countryCode = "+1(";
-      String closeAreaCode = ")";
-      String middleDash = "-";
-      int endOfAreaCode = 2; // index where area code ends
-      int endOf3Dig = 5; // index where first three digits end
-      // 888 888 8888
-      String fixedNumber = countryCode + userPhoneNumber.substring(0, endOfAreaCode + 1)
-            + closeAreaCode + userPhoneNumber.substring(endOfAreaCode + 1, endOf3Dig + 1)
-            + middleDash + userPhoneNumber.substring(endOf3Dig + 1);
-
-      return fixedNumber;
-   }// end FixPhoneNumber
-
    /* Checks that phone number was entered correctly */
    public static boolean CheckPhoneNumber(String userPhoneNumber) {
       if (userPhoneNumber.length() != 10) { // checks number of chars
@@ -1085,9 +1629,7 @@ public class Cafe {
 
    public static boolean PhoneNumberExists(Cafe esql, String userPhoneNumber) {
       try {
-         String query = String.format("SELECT * FROM USERS WHERE phoneNum = '%s'", userPhoneNumber);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0) {
+         if (esql.getUserService().phoneNumberExists(userPhoneNumber)) {
             System.out.println("User phone number exists");
             return true;
          } else {
@@ -1174,14 +1716,40 @@ public class Cafe {
    /* How to update favorite items */
    public static void UpdateFavoriteItems(Cafe esql, String userToUpdate) {
       try {
-         System.out.printf("Enter new favorite items for '%s': ", userToUpdate);
-         String newUserFavItems = in.readLine();
-
-         String query = String.format("UPDATE users SET favItems = '%s' WHERE login = '%s'", newUserFavItems,
-               userToUpdate);
-         esql.executeUpdate(query);
-
-         System.out.println("User favorite items successfully updated!");
+         boolean updatingFavorites = true;
+         while (updatingFavorites) {
+            System.out.printf("Favorite items of '%s': %s\n", userToUpdate,
+                  esql.getUserService().getFavorites(userToUpdate));
+            System.out.println("1. Add a favorite item");
+            System.out.println("2. Remove a favorite item");
+            System.out.println("3. Back to update menu");
+            switch (readChoice()) {
+               case 1:
+                  System.out.println("Enter item name to add: ");
+                  MenuItem item = FindItemOnMenu(esql, in.readLine());
+                  if (item != null) {
+                     if (esql.getUserService().addFavorite(userToUpdate, item.getItemName()))
+                        System.out.println(item.getItemName() + " added to favorite items!");
+                     else
+                        System.out.println(item.getItemName() + " is already a favorite item.");
+                  }
+                  break;
+               case 2:
+                  System.out.println("Enter item name to remove: ");
+                  String itemName = in.readLine();
+                  if (esql.getUserService().removeFavorite(userToUpdate, itemName))
+                     System.out.println(itemName + " removed from favorite items!");
+                  else
+                     System.out.println(itemName + " is not a favorite item.");
+                  break;
+               case 3:
+                  updatingFavorites = false;
+                  break;
+               default:
+                  System.out.println("Unrecognized choice!");
+                  break;
+            }
+         }
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -1246,13 +1814,12 @@ public class Cafe {
 
             else {
                System.out.printf("Updating user login '%s' to '%s'\n", userToUpdate, updatedLogin);
-               String query = String.format("UPDATE users SET login = '%s' WHERE login = '%s'", updatedLogin,
-                     userToUpdate);
-               esql.executeUpdate(query);
-
-               userToUpdate = updatedLogin;
-
-               System.out.println("User login successfully updated!");
+               if (esql.getUserService().updateLogin(userToUpdate, updatedLogin)) {
+                  userToUpdate = updatedLogin;
+                  System.out.println("User login successfully updated!");
+               } else {
+                  System.out.println("User login not updated, it was taken in the meantime.");
+               }
 
                loginUpdating = false;
             }
@@ -1270,10 +1837,7 @@ public class Cafe {
          System.out.printf("Enter new user password for '%s': ", userToUpdate);
          String newUserPassword = in.readLine();
 
-         String query = String.format("UPDATE users SET password = '%s' WHERE login = '%s'", newUserPassword,
-               userToUpdate);
-         esql.executeUpdate(query);
-
+         esql.getUserService().updatePassword(userToUpdate, newUserPassword);
          System.out.println("User password successfully updated!");
       } catch (Exception e) {
          System.err.println(e.getMessage());
@@ -1305,7 +1869,7 @@ public class Cafe {
                      break;
                }
             } else {
-               updatedPhoneNumber = FixPhoneNumber(updatedPhoneNumber);
+               updatedPhoneNumber = UserService.formatPhoneNumber(updatedPhoneNumber);
                formattingCorrect = true;
             }
 
@@ -1328,11 +1892,10 @@ public class Cafe {
                   }
                } else {
                   System.out.printf("Updating user phone number to '%s'\n", updatedPhoneNumber);
-                  String query = String.format("UPDATE users SET phoneNum = '%s' WHERE login = '%s'",
-                        updatedPhoneNumber, userToUpdate);
-                  esql.executeUpdate(query);
-
-                  System.out.println("User phone number successfully updated!");
+                  if (esql.getUserService().updatePhoneNumber(userToUpdate, updatedPhoneNumber))
+                     System.out.println("User phone number successfully updated!");
+                  else
+                     System.out.println("User phone number not updated, it was taken in the meantime.");
 
                   updatingPhoneNum = false;
                   formattingCorrect = false;
@@ -1348,7 +1911,7 @@ public class Cafe {
    /* How manager can update user type */
    public static void UpdateUserType(Cafe esql, String userToUpdate) {
       try {
-         String newUserType = "Customer";
+         Role newUserType = Role.CUSTOMER;
 
          System.out.printf("Select new user type for '%s': \n", userToUpdate);
          System.out.println("1. Customer");
@@ -1356,15 +1919,15 @@ public class Cafe {
          System.out.println("3. Manager");
          switch (readChoice()) {
             case 1:
-               newUserType = "Customer";
+               newUserType = Role.CUSTOMER;
                break;
 
             case 2:
-               newUserType = "Employee";
+               newUserType = Role.EMPLOYEE;
                break;
 
             case 3:
-               newUserType = "Manager";
+               newUserType = Role.MANAGER;
                break;
 
             default:
@@ -1373,58 +1936,244 @@ public class Cafe {
 
          }
 
-         String query = String.format("UPDATE users SET type = '%s' WHERE login = '%s'", newUserType, userToUpdate);
-         esql.executeUpdate(query);
-
-         System.out.println("User type successfully updated to " + newUserType + "!");
+         esql.getUserService().updateRole(userToUpdate, newUserType);
+         System.out.println("User type successfully updated to " + newUserType.getDbValue() + "!");
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
    }// end UpdateUserType
 
-   public static void PlaceOrder(Cafe esql) {
-
+   /* Lets the user pick items off the menu and places the order */
+   public static void PlaceOrder(Cafe esql, String authorizedUser) {
       try {
-         // get user input
-         System.out.println("Enter name for order: ");
-         String orderName = in.readLine();
          // print menu
          ViewFullMenu(esql);
-         // choose from menu
+
+         // choose from menu, entering an item again adds one more of it
+         Map<String, Integer> items = new LinkedHashMap<String, Integer>();
+         boolean choosingItems = true;
+         while (choosingItems) {
+            System.out.println("Enter item name to add to the order (leave blank when done): ");
+            String name = in.readLine();
+            if (name == null || name.trim().isEmpty()) {
+               choosingItems = false;
+            } else {
+               MenuItem item = FindItemOnMenu(esql, name.trim());
+               if (item != null) {
+                  Integer quantity = items.get(item.getItemName());
+                  items.put(item.getItemName(), quantity == null ? 1 : quantity + 1);
+               }
+            }
+         }
 
          // validate data
+         if (items.isEmpty()) {
+            System.out.println("No items chosen, order not placed.");
+            return;
+         }
+         for (Map.Entry<String, Integer> line : items.entrySet())
+            System.out.println(line.getValue() + " x " + line.getKey());
+         System.out.println("Order total: $" + esql.getOrderService().total(items));
+         System.out.println("1. Place order");
+         System.out.println("2. Cancel");
+         if (readChoice() != 1) {
+            System.out.println("Order cancelled.");
+            return;
+         }
+
          // perform SQL call
+         int orderid = esql.getOrderService().placeOrder(authorizedUser, items);
+         System.out.println("Order " + orderid + " successfully placed!");
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
+   }// end PlaceOrder
 
-   }
+   /*
+    * Shows the user's orders newest first, one page at a time. Each page
+    * continues after the last order shown (keyset paging on the
+    * Orders(login, timeStampRecieved, orderid) index), so later pages cost
+    * the same as the first however long the history is.
+    **/
+   public static void ViewRecentOrders(Cafe esql, String authorizedUser) {
+      try {
+         String afterTime = null;
+         int afterId = 0;
+         boolean paging = true;
+         while (paging) {
+            List<List<String>> page = esql.getOrderService().history(authorizedUser, afterTime, afterId,
+                  HISTORY_PAGE_SIZE);
+            if (page.isEmpty()) {
+               System.out.println(afterTime == null ? "You have no orders yet." : "No older orders.");
+               return;
+            }
 
-   public static void UpdateOrder(Cafe esql) {
+            ResultRenderer renderer = ResultRenderer.forStandardOut();
+            renderer.begin(new String[] { "orderid", "received", "total", "paid", "itemname", "status", "comments" });
+            int orders = 0;
+            String lastId = null;
+            for (List<String> record : page) {
+               if (!record.get(0).equals(lastId))
+                  ++orders;
+               lastId = record.get(0);
+               afterTime = record.get(1);
+               afterId = Columns.toInt(lastId);
+               renderer.row(new String[] { lastId, afterTime, record.get(2), record.get(3), Display(record.get(4)),
+                     Display(record.get(5)), Display(record.get(6)) });
+            }
+            renderer.end();
+
+            if (orders < HISTORY_PAGE_SIZE)
+               return;
+            System.out.println("1. Show older orders");
+            System.out.println("2. Back");
+            paging = readChoice() == 1;
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }// end ViewRecentOrders
+
+   /* Lets staff record whether an order has been paid */
+   public static void UpdateOrder(Cafe esql, UserSession session) {
       try {
+         if (!session.isStaff()) {
+            System.out.println("You are not a manager or employee. You cannot update orders.");
+            return;
+         }
          System.out.println("What's the order ID?");
-         String OrderID = in.readLine();
-         System.out.println("Are you a manager or employee?");
-         System.out.println("1. Manager/Employee");
-         System.out.println("2. Other");
-         int userChoice = in.read();
-
-         switch (userChoice) {
+         int orderid = Integer.parseInt(in.readLine().trim());
+         System.out.println("Has payment been made?");
+         System.out.println("1. Paid");
+         System.out.println("2. Not paid");
+         switch (readChoice()) {
             case 1:
-               System.out.println("Has payment been made? (True or False)");
-               String paymentChoice = in.readLine();
-               String query = String.format("UPDATE ORDERS SET Paid = %s WHERE OrderID = '%s'", paymentChoice, OrderID);
-               esql.executeUpdate(query);
+               if (esql.getOrderService().markPaid(Collections.singletonList(orderid)).isEmpty())
+                  System.out.println("Order " + orderid + " does not exist or is already paid.");
+               else
+                  System.out.println("Order " + orderid + " marked as paid.");
                break;
             case 2:
-               System.out.println("You are not a manager or employee. You cannot update orders.");
+               if (!esql.getOrderService().markUnpaid(orderid))
+                  System.out.println("Order " + orderid + " does not exist or is not paid.");
+               else
+                  System.out.println("Order " + orderid + " marked as not paid.");
+               break;
+            default:
+               System.out.println("Unrecognized choice!");
                break;
          }
+      } catch (NumberFormatException e) {
+         System.out.println("Order ID must be a number!");
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }// end UpdateOrder
+
+   /*
+    * Lists the unpaid orders and marks the ones entered as paid, all of them
+    * with one statement
+    **/
+   public static void UpdateOrderPayment(Cafe esql) {
+      try {
+         List<List<String>> unpaid = esql.getOrderService().unpaidOrders(PAYMENT_LIST_SIZE);
+         if (unpaid.isEmpty()) {
+            System.out.println("There are no unpaid orders.");
+            return;
+         }
+         ResultRenderer renderer = ResultRenderer.forStandardOut();
+         renderer.begin(new String[] { "orderid", "login", "received", "total" });
+         for (List<String> record : unpaid)
+            renderer.row(new String[] { record.get(0), Display(record.get(1)), record.get(2), record.get(3) });
+         renderer.end();
+
+         System.out.println("Enter the paid order IDs separated by commas or spaces, \"all\" for every order listed "
+               + "(leave blank to cancel): ");
+         String input = in.readLine();
+         if (input == null || input.trim().isEmpty())
+            return;
+         List<Integer> orderids = new ArrayList<Integer>();
+         if (input.trim().equalsIgnoreCase("all")) {
+            for (List<String> record : unpaid)
+               orderids.add(Columns.toInt(record.get(0)));
+         } else {
+            for (String id : input.trim().split("[,\\s]+"))
+               orderids.add(Integer.valueOf(id));
+         }
 
+         List<Integer> paid = esql.getOrderService().markPaid(orderids);
+         System.out.println(paid.size() + " of " + orderids.size() + " orders marked as paid.");
+         if (paid.size() < orderids.size()) {
+            List<Integer> skipped = new ArrayList<Integer>(orderids);
+            skipped.removeAll(paid);
+            System.out.println("Not updated, unknown or already paid: " + skipped);
+         }
+      } catch (NumberFormatException e) {
+         System.out.println("Order IDs must be numbers!");
       } catch (Exception e) {
          System.err.println(e.getMessage());
       }
+   }// end UpdateOrderPayment
 
-   }
+   /*
+    * Shows the items the kitchen still has to make and lets staff move them
+    * to the next status. The list follows changes made at other stations.
+    **/
+   public static void ViewKitchenQueue(Cafe esql) {
+      try {
+         KitchenQueue kitchen = esql.getKitchenQueue();
+         boolean watching = true;
+         while (watching) {
+            List<KitchenQueue.Item> items = kitchen.getItems();
+            if (items.isEmpty()) {
+               System.out.println("The kitchen queue is empty.");
+            } else {
+               ResultRenderer renderer = ResultRenderer.forStandardOut();
+               renderer.begin(new String[] { "#", "orderid", "itemname", "status", "lastupdated", "comments" });
+               for (int i = 0; i < items.size(); ++i) {
+                  KitchenQueue.Item item = items.get(i);
+                  renderer.row(new String[] { String.valueOf(i + 1), String.valueOf(item.getOrderid()),
+                        item.getItemName(), item.getStatus(), item.getLastUpdated(), Display(item.getComments()) });
+               }
+               renderer.end();
+            }
+            System.out.println("1. Refresh");
+            System.out.println("2. Advance an item");
+            System.out.println("9. Back");
+            switch (readChoice()) {
+               case 1:
+                  break;
+               case 2:
+                  System.out.println("Enter the # of the item: ");
+                  int row;
+                  try {
+                     row = Integer.parseInt(in.readLine().trim()) - 1;
+                  } catch (NumberFormatException e) {
+                     System.out.println("Your input is invalid!");
+                     break;
+                  }
+                  if (row < 0 || row >= items.size()) {
+                     System.out.println("No such item!");
+                     break;
+                  }
+                  KitchenQueue.Item item = items.get(row);
+                  if (kitchen.advance(item))
+                     System.out.println(item.getItemName() + " of order " + item.getOrderid() + " is now "
+                           + KitchenQueue.nextStatus(item.getStatus()) + ".");
+                  else
+                     System.out.println("That item was already updated at another station.");
+                  break;
+               case 9:
+                  watching = false;
+                  break;
+               default:
+                  System.out.println("Unrecognized choice!");
+                  break;
+            }
+         }
+      } catch (Exception e) {
+         System.err.println(e.getMessage());
+      }
+   }// end ViewKitchenQueue
 
 }// end Cafe
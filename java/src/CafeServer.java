@@ -0,0 +1,109 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves many terminal sessions from one process. Registers connect over a
+ * plain TCP (telnet style) socket on localhost and each connection runs the
+ * regular Cafe menus on its own thread, sharing the connection pool and
+ * caches of a single Cafe instance.
+ *
+ * At most cafe.server.maxSessions sessions are served at once; further
+ * connections are told the server is busy and closed.
+ *
+ */
+public class CafeServer {
+
+   static final int MAX_SESSIONS = Integer.getInteger("cafe.server.maxSessions", 64);
+
+   private final Cafe _esql;
+   private final int _port;
+
+   // one permit per session that may run at the same time
+   private final Semaphore _sessions = new Semaphore(MAX_SESSIONS);
+
+   private final ExecutorService _workers = Executors.newCachedThreadPool();
+
+   /**
+    * Creates a server
+    *
+    * @param esql the database shared by all sessions
+    * @param port the localhost port to listen on
+    */
+   public CafeServer(Cafe esql, int port) {
+      this._esql = esql;
+      this._port = port;
+   }// end CafeServer
+
+   /**
+    * Accepts sessions until the process is stopped.
+    *
+    * @throws java.io.IOException when the port could not be opened
+    */
+   public void serve() throws IOException {
+      SessionConsole.install();
+      ServerSocket server = new ServerSocket(this._port, 50, InetAddress.getByName("localhost"));
+      System.out.println("Serving terminal sessions on localhost:" + this._port);
+      try {
+         while (true) {
+            final Socket socket = server.accept();
+            if (!this._sessions.tryAcquire()) {
+               refuse(socket);
+               continue;
+            }
+            this._workers.execute(new Runnable() {
+               public void run() {
+                  try {
+                     runSession(socket);
+                  } finally {
+                     _sessions.release();
+                  }
+               }
+            });
+         }
+      } finally {
+         server.close();
+         this._workers.shutdownNow();
+      }
+   }// end serve
+
+   /* Runs the Cafe menus against one connected terminal */
+   private void runSession(Socket socket) {
+      try {
+         BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+         OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+         SessionConsole.attach(input, output);
+         Cafe.Greeting();
+         Cafe.RunSession(this._esql);
+         System.out.println("Bye !");
+      } catch (IOException e) {
+         // the terminal went away
+      } finally {
+         SessionConsole.detach();
+         try {
+            socket.close();
+         } catch (IOException e) {
+            // ignored.
+         }
+      }
+   }// end runSession
+
+   /* Tells a terminal that all sessions are taken and hangs up */
+   private static void refuse(Socket socket) {
+      try {
+         socket.getOutputStream().write("Server busy, please try again later.\r\n".getBytes("UTF-8"));
+         socket.close();
+      } catch (IOException e) {
+         // ignored.
+      }
+   }// end refuse
+
+}// end CafeServer
@@ -0,0 +1,104 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Reads column values as trimmed, typed Java values. Databases created
+ * before the switch to varchar columns still return blank-padded char(n)
+ * values, so text is always stripped of trailing padding here rather than
+ * at every comparison.
+ *
+ * Lists are written as array literals, so a statement can take any number
+ * of values through one CAST(? AS type[]) parameter and keep the same text.
+ *
+ */
+public class Columns {
+
+   private Columns() {
+   }
+
+   /**
+    * @param rs     the result set positioned on a row
+    * @param column the 1-based column index
+    * @return the text value without trailing padding, or null
+    * @throws java.sql.SQLException when the column could not be read
+    */
+   public static String text(ResultSet rs, int column) throws SQLException {
+      return trim(rs.getString(column));
+   }// end text
+
+   /**
+    * @param value a text value, may be null
+    * @return the value without trailing blanks, or null
+    */
+   public static String trim(String value) {
+      if (value == null)
+         return null;
+      int end = value.length();
+      while (end > 0 && value.charAt(end - 1) == ' ')
+         --end;
+      return end == value.length() ? value : value.substring(0, end);
+   }// end trim
+
+   /**
+    * @param value a text value, may be null
+    * @return the value without trailing blanks, or an empty string for null
+    */
+   public static String textOrEmpty(String value) {
+      return value == null ? "" : trim(value);
+   }// end textOrEmpty
+
+   /**
+    * @param value a numeric column read as text
+    * @return the value as a float
+    */
+   public static float toFloat(String value) {
+      return Float.parseFloat(value.trim());
+   }// end toFloat
+
+   /**
+    * @param value an integer column read as text
+    * @return the value as an int
+    */
+   public static int toInt(String value) {
+      return Integer.parseInt(value.trim());
+   }// end toInt
+
+   /**
+    * @param value a boolean column read as text (t/f or true/false)
+    * @return the value as a boolean, false for null
+    */
+   public static boolean toBoolean(String value) {
+      if (value == null)
+         return false;
+      String flag = value.trim();
+      return flag.equalsIgnoreCase("t") || flag.equalsIgnoreCase("true");
+   }// end toBoolean
+
+   /**
+    * @param values the elements, null elements are written as NULL
+    * @return the values as a quoted array literal such as {"a","b"}
+    */
+   public static String toArray(List<?> values) {
+      StringBuilder array = new StringBuilder("{");
+      for (Object value : values) {
+         if (array.length() > 1)
+            array.append(',');
+         if (value == null) {
+            array.append("NULL");
+            continue;
+         }
+         array.append('"');
+         String text = value.toString();
+         for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\')
+               array.append('\\');
+            array.append(c);
+         }
+         array.append('"');
+      }
+      return array.append('}').toString();
+   }// end toArray
+
+}// end Columns
@@ -0,0 +1,247 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small bounded pool of physical PostgreSQL connections. Connections are
+ * opened lazily up to the maximum size, validated when they have been idle
+ * for a while, retired once they reach their maximum lifetime, and reported
+ * when a caller holds on to one for too long.
+ *
+ * The limits can be tuned with the following system properties:
+ * cafe.pool.maxSize, cafe.pool.borrowTimeoutMs, cafe.pool.maxLifetimeMs,
+ * cafe.pool.validateAfterIdleMs and cafe.pool.leakThresholdMs (0 disables
+ * leak detection).
+ *
+ */
+public class ConnectionPool {
+
+   static final int MAX_SIZE = Integer.getInteger("cafe.pool.maxSize", 8);
+   static final long BORROW_TIMEOUT_MS = Long.getLong("cafe.pool.borrowTimeoutMs", 30000L);
+   static final long MAX_LIFETIME_MS = Long.getLong("cafe.pool.maxLifetimeMs", 30L * 60L * 1000L);
+   static final long VALIDATE_AFTER_IDLE_MS = Long.getLong("cafe.pool.validateAfterIdleMs", 5000L);
+   static final long LEAK_THRESHOLD_MS = Long.getLong("cafe.pool.leakThresholdMs", 60000L);
+
+   // connection parameters used to open new physical connections
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // one permit per connection that may be handed out
+   private final Semaphore _permits = new Semaphore(MAX_SIZE, true);
+
+   // open connections waiting to be borrowed, most recently used first
+   private final LinkedBlockingDeque<PooledConnection> _idle = new LinkedBlockingDeque<PooledConnection>();
+
+   // connections currently handed out
+   private final Set<PooledConnection> _borrowed = Collections
+         .newSetFromMap(new ConcurrentHashMap<PooledConnection, Boolean>());
+
+   // background thread reporting connections that were never given back
+   private final Thread _leakDetector;
+
+   private volatile boolean _closed = false;
+
+   /**
+    * Creates a new pool. No connection is opened until the first borrow.
+    *
+    * @param url    the JDBC connection URL
+    * @param user   the user name used to login to the database
+    * @param passwd the user login password
+    */
+   public ConnectionPool(String url, String user, String passwd) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+
+      if (LEAK_THRESHOLD_MS > 0) {
+         this._leakDetector = new Thread(new Runnable() {
+            public void run() {
+               detectLeaks();
+            }
+         }, "cafe-pool-leak-detector");
+         this._leakDetector.setDaemon(true);
+         this._leakDetector.start();
+      } else {
+         this._leakDetector = null;
+      }
+   }// end ConnectionPool
+
+   /**
+    * Hands out a connection, waiting up to the borrow timeout for one to be
+    * given back when the pool is exhausted. Every borrowed connection must
+    * be returned through release.
+    *
+    * @return a validated connection
+    * @throws java.sql.SQLException when the pool is closed, the wait timed out
+    *                               or no connection could be opened
+    */
+   public PooledConnection borrow() throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+      try {
+         if (!this._permits.tryAcquire(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+            throw new SQLException("Timed out after " + BORROW_TIMEOUT_MS
+                  + "ms waiting for a database connection (pool size " + MAX_SIZE + ")");
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while waiting for a database connection");
+      }
+
+      try {
+         PooledConnection conn = takeUsableIdle();
+         if (conn == null)
+            conn = new PooledConnection(DriverManager.getConnection(this._url, this._user, this._passwd));
+         conn.onBorrow(LEAK_THRESHOLD_MS > 0 ? new Throwable("Connection borrowed here") : null);
+         this._borrowed.add(conn);
+         return conn;
+      } catch (SQLException e) {
+         this._permits.release();
+         throw e;
+      } catch (RuntimeException e) {
+         this._permits.release();
+         throw e;
+      }
+   }// end borrow
+
+   /**
+    * Gives a borrowed connection back to the pool, rolling back whatever
+    * was left uncommitted. Connections that are past their lifetime, or that
+    * saw an error and no longer answer once rolled back, are closed instead
+    * of being reused.
+    *
+    * @param conn the connection obtained from borrow, may be null
+    */
+   public void release(PooledConnection conn) {
+      if (conn == null)
+         return;
+      if (!this._borrowed.remove(conn))
+         return; // already released
+      try {
+         boolean reusable = !this._closed && !expired(conn);
+         if (reusable) {
+            try {
+               // leave the connection the way a fresh one looks; this also
+               // ends a transaction aborted by an error, so validate can run
+               if (!conn.getConnection().getAutoCommit()) {
+                  conn.getConnection().rollback();
+                  conn.getConnection().setAutoCommit(true);
+               }
+            } catch (SQLException e) {
+               reusable = false;
+            }
+         }
+         if (reusable && conn.isSuspect())
+            reusable = conn.validate();
+         conn.onRelease();
+         if (reusable)
+            this._idle.offerFirst(conn);
+         else
+            conn.closeQuietly();
+      } finally {
+         this._permits.release();
+      }
+   }// end release
+
+   /**
+    * Opens a connection that is not part of the pool, for session state
+    * such as LISTEN that must not be handed to other borrowers. The caller
+    * closes it.
+    *
+    * @return a new physical connection
+    * @throws java.sql.SQLException when the pool is closed or the connection
+    *                               could not be opened
+    */
+   public Connection openDedicated() throws SQLException {
+      if (this._closed)
+         throw new SQLException("Connection pool is closed");
+      return DriverManager.getConnection(this._url, this._user, this._passwd);
+   }// end openDedicated
+
+   /**
+    * Closes all idle connections and refuses further borrows. Connections
+    * still borrowed are closed when they are released.
+    */
+   public void close() {
+      this._closed = true;
+      if (this._leakDetector != null)
+         this._leakDetector.interrupt();
+      PooledConnection conn;
+      while ((conn = this._idle.pollFirst()) != null)
+         conn.closeQuietly();
+   }// end close
+
+   /**
+    * @return the number of connections currently handed out
+    */
+   public int getBorrowedCount() {
+      return this._borrowed.size();
+   }// end getBorrowedCount
+
+   /**
+    * @return the number of open connections waiting to be borrowed
+    */
+   public int getIdleCount() {
+      return this._idle.size();
+   }// end getIdleCount
+
+   /*
+    * Pops idle connections until one is usable, closing the ones that are too
+    * old or do not answer. Returns null when a new connection must be opened.
+    */
+   private PooledConnection takeUsableIdle() {
+      PooledConnection conn;
+      while ((conn = this._idle.pollFirst()) != null) {
+         if (expired(conn)) {
+            conn.closeQuietly();
+            continue;
+         }
+         long idleFor = System.currentTimeMillis() - conn.getLastReleasedAt();
+         if (idleFor >= VALIDATE_AFTER_IDLE_MS && !conn.validate()) {
+            conn.closeQuietly();
+            continue;
+         }
+         return conn;
+      }
+      return null;
+   }// end takeUsableIdle
+
+   /* Returns true if the connection has been open longer than allowed */
+   private boolean expired(PooledConnection conn) {
+      return MAX_LIFETIME_MS > 0 && System.currentTimeMillis() - conn.getCreatedAt() >= MAX_LIFETIME_MS;
+   }// end expired
+
+   /* Periodically reports connections held longer than the leak threshold */
+   private void detectLeaks() {
+      long interval = Math.max(1000L, LEAK_THRESHOLD_MS / 2);
+      while (!this._closed) {
+         try {
+            Thread.sleep(interval);
+         } catch (InterruptedException e) {
+            return;
+         }
+         long now = System.currentTimeMillis();
+         List<PooledConnection> held = new ArrayList<PooledConnection>(this._borrowed);
+         for (PooledConnection conn : held) {
+            long borrowedAt = conn.getBorrowedAt();
+            if (borrowedAt == 0 || conn.isLeakReported() || now - borrowedAt < LEAK_THRESHOLD_MS)
+               continue;
+            conn.setLeakReported();
+            System.err.println("Warning - database connection held for " + (now - borrowedAt)
+                  + "ms, possible leak:");
+            Throwable site = conn.getBorrowSite();
+            if (site != null)
+               site.printStackTrace();
+         }
+      }
+   }// end detectLeaks
+
+}// end ConnectionPool
@@ -0,0 +1,274 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * In-memory queue of the ordered items the kitchen still has to make,
+ * ordered by status and then by oldest update.
+ *
+ * The ItemStatus trigger sends NOTIFY item_status whenever items are added
+ * or change status. The queue LISTENs on its own connection, outside the
+ * pool, and reloads the active items only when a notification arrived, so
+ * stations watching the queue do not query ItemStatus themselves. The
+ * bundled driver hands notifications over only after a round-trip, so the
+ * listener sends an empty query every cafe.kitchen.listenIntervalMs.
+ *
+ */
+public class KitchenQueue {
+
+   static final long LISTEN_INTERVAL_MS = Long.getLong("cafe.kitchen.listenIntervalMs", 250L);
+   static final long RECONNECT_DELAY_MS = 5000L;
+
+   static final String CHANNEL = "item_status";
+
+   /**
+    * One ordered item waiting in the queue.
+    */
+   public static class Item {
+      private final int _orderid;
+      private final String _itemName;
+      private final String _lastUpdated;
+      private final String _status;
+      private final String _comments;
+
+      Item(int orderid, String itemName, String lastUpdated, String status, String comments) {
+         this._orderid = orderid;
+         this._itemName = itemName;
+         this._lastUpdated = lastUpdated;
+         this._status = status;
+         this._comments = comments;
+      }
+
+      public int getOrderid() {
+         return this._orderid;
+      }
+
+      public String getItemName() {
+         return this._itemName;
+      }
+
+      public String getLastUpdated() {
+         return this._lastUpdated;
+      }
+
+      public String getStatus() {
+         return this._status;
+      }
+
+      public String getComments() {
+         return this._comments;
+      }
+   }// end Item
+
+   private final Cafe _esql;
+
+   // current contents, replaced as a whole on every reload
+   private final AtomicReference<List<Item>> _items = new AtomicReference<List<Item>>(
+         Collections.<Item>emptyList());
+
+   // background thread listening for status changes
+   private Thread _listener = null;
+
+   private volatile boolean _stopped = false;
+
+   /**
+    * Creates an empty queue. Call start to load and follow it.
+    *
+    * @param esql the database holding ItemStatus
+    */
+   public KitchenQueue(Cafe esql) {
+      this._esql = esql;
+   }// end KitchenQueue
+
+   /**
+    * Subscribes to status changes, loads the queue and starts the listener
+    * thread.
+    *
+    * @throws java.sql.SQLException when the listener could not subscribe or
+    *                               the queue could not be loaded
+    */
+   public synchronized void start() throws SQLException {
+      if (this._listener != null)
+         return;
+      // subscribe before the first load so no change falls in between
+      final Connection listen = subscribe();
+      try {
+         refresh();
+      } catch (SQLException e) {
+         closeQuietly(listen);
+         throw e;
+      }
+      this._listener = new Thread(new Runnable() {
+         public void run() {
+            listen(listen);
+         }
+      }, "cafe-kitchen-listener");
+      this._listener.setDaemon(true);
+      this._listener.start();
+   }// end start
+
+   /**
+    * Stops the listener thread and closes its connection.
+    */
+   public synchronized void stop() {
+      this._stopped = true;
+      if (this._listener != null)
+         this._listener.interrupt();
+   }// end stop
+
+   /**
+    * Reloads the items still waiting or in progress.
+    *
+    * @throws java.sql.SQLException when the queue could not be loaded
+    */
+   public void refresh() throws SQLException {
+      List<Item> items = new ArrayList<Item>();
+      for (List<String> record : this._esql.executeQueryAndReturnResult(Cafe.KITCHEN_QUEUE_QUERY,
+            Cafe.STATUS_NOT_STARTED, Cafe.STATUS_STARTED)) {
+         items.add(new Item(Columns.toInt(record.get(0)), record.get(1), record.get(2), record.get(3),
+               record.get(4)));
+      }
+      this._items.set(Collections.unmodifiableList(items));
+   }// end refresh
+
+   /**
+    * @return the items still to be made, by status and then oldest update,
+    *         showing changes still waiting in the status buffer
+    */
+   public List<Item> getItems() {
+      List<Item> items = this._items.get();
+      StatusWriteBuffer buffer = this._esql.getStatusBuffer();
+      if (buffer == null || buffer.isEmpty())
+         return items;
+      List<Item> current = new ArrayList<Item>(items.size());
+      for (Item item : items) {
+         String status = buffer.pendingStatus(item.getOrderid(), item.getItemName());
+         if (status == null)
+            current.add(item);
+         else if (!status.equals(Cafe.STATUS_FINISHED))
+            current.add(new Item(item.getOrderid(), item.getItemName(), item.getLastUpdated(), status,
+                  item.getComments()));
+      }
+      // keep the items grouped by status, in update order within each status
+      Collections.sort(current, new Comparator<Item>() {
+         public int compare(Item a, Item b) {
+            return a.getStatus().compareTo(b.getStatus());
+         }
+      });
+      return current;
+   }// end getItems
+
+   /**
+    * Moves an item to the next status. The update only applies if the item
+    * still has the status it was shown with, so two stations cannot both
+    * start or finish the same item. With the status buffer enabled the
+    * change is buffered and written on the next flush.
+    *
+    * @param item the item as shown in the queue
+    * @return true if the status was advanced, false if someone else changed
+    *         it first
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean advance(Item item) throws SQLException {
+      String next = nextStatus(item.getStatus());
+      if (next == null)
+         return false;
+      StatusWriteBuffer buffer = this._esql.getStatusBuffer();
+      if (buffer != null)
+         return buffer.record(item.getOrderid(), item.getItemName(), item.getStatus(), next);
+      String query = "UPDATE ItemStatus SET status = ?, lastUpdated = now() "
+            + "WHERE orderid = ? AND itemName = ? AND status = ?";
+      boolean advanced = this._esql.executeUpdate(query, next, item.getOrderid(), item.getItemName(),
+            item.getStatus()) > 0;
+      // show the change right away instead of waiting for the notification
+      refresh();
+      return advanced;
+   }// end advance
+
+   /**
+    * @param status an item status
+    * @return the status following it, or null for the last status
+    */
+   public static String nextStatus(String status) {
+      if (Cafe.STATUS_NOT_STARTED.equals(status))
+         return Cafe.STATUS_STARTED;
+      if (Cafe.STATUS_STARTED.equals(status))
+         return Cafe.STATUS_FINISHED;
+      return null;
+   }// end nextStatus
+
+   /* Opens the listening connection */
+   private Connection subscribe() throws SQLException {
+      Connection conn = this._esql.openDedicatedConnection();
+      try {
+         Statement stmt = conn.createStatement();
+         try {
+            stmt.executeUpdate("LISTEN " + CHANNEL);
+         } finally {
+            stmt.close();
+         }
+         return conn;
+      } catch (SQLException e) {
+         closeQuietly(conn);
+         throw e;
+      }
+   }// end subscribe
+
+   /* Reloads the queue whenever notifications arrive, reconnecting on errors */
+   private void listen(Connection conn) {
+      try {
+         while (!this._stopped) {
+            try {
+               if (conn == null) {
+                  conn = subscribe();
+                  // changes may have been missed while disconnected
+                  refresh();
+               }
+               if (waitForChange(conn))
+                  refresh();
+            } catch (SQLException e) {
+               closeQuietly(conn);
+               conn = null;
+               Thread.sleep(RECONNECT_DELAY_MS);
+            }
+         }
+      } catch (InterruptedException e) {
+         // stopped
+      } finally {
+         closeQuietly(conn);
+      }
+   }// end listen
+
+   /* Waits one interval and reports whether any notification came in */
+   private static boolean waitForChange(Connection conn) throws SQLException, InterruptedException {
+      Thread.sleep(LISTEN_INTERVAL_MS);
+      Statement stmt = conn.createStatement();
+      try {
+         // an empty round-trip makes the driver read pending notifications
+         stmt.executeQuery("SELECT 1").close();
+      } finally {
+         stmt.close();
+      }
+      PGNotification[] notifications = ((PGConnection) conn).getNotifications();
+      return notifications != null && notifications.length > 0;
+   }// end waitForChange
+
+   private static void closeQuietly(Connection conn) {
+      if (conn == null)
+         return;
+      try {
+         conn.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }// end closeQuietly
+
+}// end KitchenQueue
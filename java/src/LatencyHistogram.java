@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of durations in nanoseconds that many threads can
+ * record into without locking.
+ *
+ * Values are counted in log-linear buckets: 32 buckets per power of two, so
+ * a reported percentile is within about 3% of the recorded value. Durations
+ * up to about an hour are told apart; longer ones land in the last bucket.
+ * Recording is a few atomic increments and never allocates.
+ *
+ */
+public class LatencyHistogram {
+
+   static final int SUB_BUCKET_BITS = 5;
+   static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   static final int MAX_EXPONENT = 41;
+   static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+   private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong _count = new AtomicLong();
+   private final AtomicLong _sum = new AtomicLong();
+   private final AtomicLong _max = new AtomicLong();
+
+   /**
+    * Records one duration.
+    *
+    * @param nanos the duration in nanoseconds, negative values count as 0
+    */
+   public void record(long nanos) {
+      long value = Math.max(0, nanos);
+      this._counts.incrementAndGet(bucketOf(value));
+      this._count.incrementAndGet();
+      this._sum.addAndGet(value);
+      long max = this._max.get();
+      while (value > max && !this._max.compareAndSet(max, value))
+         max = this._max.get();
+   }// end record
+
+   /**
+    * @return the number of recorded durations
+    */
+   public long getCount() {
+      return this._count.get();
+   }// end getCount
+
+   /**
+    * @return the sum of the recorded durations in nanoseconds
+    */
+   public long getSum() {
+      return this._sum.get();
+   }// end getSum
+
+   /**
+    * @return the mean recorded duration in nanoseconds, 0 when empty
+    */
+   public double getMean() {
+      long count = this._count.get();
+      return count == 0 ? 0 : (double) this._sum.get() / count;
+   }// end getMean
+
+   /**
+    * @return the longest recorded duration in nanoseconds
+    */
+   public long getMax() {
+      return this._max.get();
+   }// end getMax
+
+   /**
+    * @param p the percentile as a fraction, e.g. 0.99
+    * @return the duration in nanoseconds that p of the recordings do not
+    *         exceed, 0 when empty
+    */
+   public long getPercentile(double p) {
+      long count = 0;
+      long[] counts = new long[BUCKETS];
+      for (int i = 0; i < BUCKETS; ++i) {
+         counts[i] = this._counts.get(i);
+         count += counts[i];
+      }
+      if (count == 0)
+         return 0;
+      long rank = Math.max(1, (long) Math.ceil(p * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += counts[i];
+         if (seen >= rank)
+            return Math.min(upperBoundOf(i), getMax());
+      }
+      return getMax();
+   }// end getPercentile
+
+   /**
+    * Clears every recording.
+    */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; ++i)
+         this._counts.set(i, 0);
+      this._count.set(0);
+      this._sum.set(0);
+      this._max.set(0);
+   }// end reset
+
+   /* Bucket index of a value: exact below 32, then 32 buckets per power of two */
+   static int bucketOf(long value) {
+      if (value < SUB_BUCKETS)
+         return (int) value;
+      int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+      int sub = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+      if (exponent == MAX_EXPONENT && value >= (1L << (MAX_EXPONENT + 1)))
+         sub = SUB_BUCKETS - 1;
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+   }// end bucketOf
+
+   /* Largest value counted in a bucket */
+   static long upperBoundOf(int bucket) {
+      if (bucket < SUB_BUCKETS)
+         return bucket;
+      int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      long width = 1L << (exponent - SUB_BUCKET_BITS);
+      return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+   }// end upperBoundOf
+
+}// end LatencyHistogram
@@ -0,0 +1,405 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives the Cafe menus headless with many concurrent virtual users to see
+ * how the database and the application hold up under a given load.
+ *
+ * Each virtual user plays one role and repeats a session of that role:
+ * customers log in, look at the menu, place an order and view their recent
+ * orders; employees log in and mark orders placed by the customer
+ * sessions as paid; managers log in and rewrite the description of a menu
+ * item with its current value. The sessions are typed into Cafe.RunSession through
+ * SessionConsole, so they run the same code as a terminal would. Logins
+ * are picked at random among the users of the role in a file in the
+ * users.csv layout.
+ *
+ * Settings:
+ * cafe.load.users virtual users (default 50),
+ * cafe.load.mix share of each role (default customer=90,employee=8,manager=2),
+ * cafe.load.warmupSeconds sessions not counted at the start (default 10),
+ * cafe.load.seconds measured time (default 60),
+ * cafe.load.thinkMs mean pause between the sessions of a user, 0 to run
+ * them back to back (default 0),
+ * cafe.load.reportIntervalSeconds progress line interval (default 10).
+ *
+ * Sessions per second, session latency percentiles and failed sessions are
+ * reported per role, followed by the statement metrics of the run.
+ *
+ * Orders placed by the run are kept, and the first login of a seeded user
+ * replaces their plaintext password with a hash, so run it against a
+ * disposable copy of the database. Orders that were there before the run
+ * are left unpaid, and items without a description are not edited.
+ *
+ */
+public class LoadGenerator {
+
+   static final int USERS = Integer.getInteger("cafe.load.users", 50);
+   static final String MIX = System.getProperty("cafe.load.mix", "customer=90,employee=8,manager=2");
+   static final int WARMUP_SECONDS = Integer.getInteger("cafe.load.warmupSeconds", 10);
+   static final int SECONDS = Integer.getInteger("cafe.load.seconds", 60);
+   static final long THINK_MS = Long.getLong("cafe.load.thinkMs", 0L);
+   static final int REPORT_INTERVAL_SECONDS = Integer.getInteger("cafe.load.reportIntervalSeconds", 10);
+
+   static final String LOGIN_FAILED = "No such user exists!";
+   static final String INPUT_CLOSED = "Input closed";
+   static final Pattern ORDER_PLACED = Pattern.compile("Order (\\d+) successfully placed!");
+
+   // order ids an employee session marks as paid at most
+   static final int PAY_BATCH = 10;
+
+   /* Counters of the sessions of one role */
+   static class RoleStats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+   }// end RoleStats
+
+   /*
+    * Keyboard input of one session. Input ends right after the login when
+    * the login failed, so the rest of the script is not typed into the main
+    * menu.
+    */
+   private static class Script extends BufferedReader {
+      private final List<String> _lines;
+      private final int _afterLogin;
+      private final ByteArrayOutputStream _output;
+      private int _next = 0;
+
+      Script(List<String> lines, int afterLogin, ByteArrayOutputStream output) {
+         super(new StringReader(""));
+         this._lines = lines;
+         this._afterLogin = afterLogin;
+         this._output = output;
+      }
+
+      public String readLine() {
+         if (this._next >= this._lines.size())
+            return null;
+         if (this._next == this._afterLogin && this._output.toString().contains(LOGIN_FAILED))
+            return null;
+         return this._lines.get(this._next++);
+      }
+   }// end Script
+
+   private final Cafe _esql;
+
+   // login and password of the users of each role
+   private final Map<Role, List<String[]>> _logins = new EnumMap<Role, List<String[]>>(Role.class);
+
+   // items ordered by the sessions
+   private List<MenuItem> _menu = null;
+
+   // items with a description, edited by the manager sessions
+   private final List<MenuItem> _described = new ArrayList<MenuItem>();
+
+   // orders placed by the customer sessions and not yet paid by an employee session
+   private final Queue<Integer> _placed = new ConcurrentLinkedQueue<Integer>();
+
+   private final Map<Role, RoleStats> _stats = new EnumMap<Role, RoleStats>(Role.class);
+
+   // sessions started before this are warmup
+   private volatile long _measureStart = Long.MAX_VALUE;
+
+   /**
+    * Creates a load generator.
+    *
+    * @param esql the database to put under load
+    */
+   public LoadGenerator(Cafe esql) {
+      this._esql = esql;
+      for (Role role : Role.values())
+         this._stats.put(role, new RoleStats());
+   }// end LoadGenerator
+
+   /**
+    * Runs the load and prints the report.
+    *
+    * @param path a file in the users.csv layout holding the logins to use
+    * @return true if every measured session succeeded
+    * @throws java.io.IOException  when the file could not be read or holds
+    *                              no users for a role in the mix
+    * @throws java.sql.SQLException when the menu could not be read
+    * @throws InterruptedException when interrupted while waiting for the
+    *                              virtual users
+    */
+   public boolean run(String path) throws IOException, SQLException, InterruptedException {
+      readLogins(path);
+      this._menu = this._esql.getMenuService().getItems();
+      if (this._menu.isEmpty())
+         throw new SQLException("The menu is empty, there is nothing to order");
+      for (MenuItem item : this._menu) {
+         if (item.getDescription() != null)
+            this._described.add(item);
+      }
+      Role[] roles = assignRoles(parseMix(MIX), USERS);
+      for (Role role : roles) {
+         if (this._logins.get(role) == null)
+            throw new IOException("No " + role.getDbValue() + " users found in " + path);
+         if (role == Role.MANAGER && this._described.isEmpty())
+            throw new SQLException("No menu item has a description for the managers to rewrite");
+      }
+
+      SessionConsole.install();
+      System.out.println(String.format("%d virtual users (%s), %ds warmup, %ds measurement, %d ms think time",
+            USERS, MIX, WARMUP_SECONDS, SECONDS, THINK_MS));
+      long start = System.nanoTime();
+      final long deadline = start + (WARMUP_SECONDS + SECONDS) * 1000000000L;
+      CountDownLatch done = new CountDownLatch(roles.length);
+      for (int i = 0; i < roles.length; ++i)
+         startUser(i, roles[i], deadline, done);
+
+      Thread.sleep(WARMUP_SECONDS * 1000L);
+      this._measureStart = System.nanoTime();
+      while (!done.await(Math.max(1, REPORT_INTERVAL_SECONDS), TimeUnit.SECONDS))
+         printProgress();
+      double seconds = (System.nanoTime() - this._measureStart) / 1e9;
+      return printReport(seconds);
+   }// end run
+
+   /* Starts one virtual user repeating sessions of its role until the deadline */
+   private void startUser(final int number, final Role role, final long deadline, final CountDownLatch done) {
+      Thread thread = new Thread(new Runnable() {
+         public void run() {
+            Random random = new Random(number);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+               while (System.nanoTime() < deadline) {
+                  output.reset();
+                  List<String> lines = new ArrayList<String>();
+                  String[] login = pick(_logins.get(role), random);
+                  lines.add("2");
+                  lines.add(login[0]);
+                  lines.add(login[1]);
+                  int afterLogin = lines.size();
+                  String[] success = script(role, random, lines);
+                  lines.add("9");
+                  lines.add("9");
+                  SessionConsole.attach(new Script(lines, afterLogin, output), output);
+
+                  long begin = System.nanoTime();
+                  boolean ok;
+                  try {
+                     Cafe.RunSession(_esql);
+                     ok = succeeded(output.toString(), success);
+                     if (role == Role.CUSTOMER)
+                        collectOrders(output.toString());
+                  } catch (RuntimeException e) {
+                     ok = false;
+                  }
+                  long end = System.nanoTime();
+                  if (begin >= _measureStart && end < deadline) {
+                     RoleStats stats = _stats.get(role);
+                     stats.latency.record(end - begin);
+                     if (!ok)
+                        stats.errors.incrementAndGet();
+                  }
+                  think(random);
+               }
+            } catch (InterruptedException e) {
+               // stopped
+            } finally {
+               SessionConsole.detach();
+               done.countDown();
+            }
+         }
+      }, "cafe-load-" + number);
+      thread.setDaemon(true);
+      thread.start();
+   }// end startUser
+
+   /*
+    * Appends the menu choices of one session after login and returns the
+    * messages that tell the session did its work
+    */
+   private String[] script(Role role, Random random, List<String> lines) {
+      switch (role) {
+         case CUSTOMER:
+            // view the full menu
+            lines.add("1");
+            lines.add("3");
+            lines.add("4");
+            // order one to three items
+            lines.add("3");
+            for (int i = 1 + random.nextInt(3); i > 0; --i)
+               lines.add(pick(this._menu, random).getItemName());
+            lines.add("");
+            lines.add("1");
+            // recent orders; 0 leaves the paging prompt and is ignored by the menu
+            lines.add("5");
+            lines.add("0");
+            return new String[] { "successfully placed!" };
+         case EMPLOYEE:
+            // pay only orders of this run; with none placed yet, view the
+            // list and cancel. When nothing is unpaid the menu ignores the
+            // line as invalid input
+            lines.add("6");
+            StringBuilder orderids = new StringBuilder();
+            Integer orderid;
+            for (int i = 0; i < PAY_BATCH && (orderid = this._placed.poll()) != null; ++i)
+               orderids.append(orderids.length() == 0 ? "" : ",").append(orderid);
+            lines.add(orderids.toString());
+            if (orderids.length() == 0)
+               return new String[] { "Enter the paid order IDs", "There are no unpaid orders." };
+            return new String[] { "orders marked as paid." };
+         default:
+            // write the description back unchanged so the menu stays the same
+            MenuItem item = pick(this._described, random);
+            lines.add("2");
+            lines.add("2");
+            lines.add(item.getItemName());
+            lines.add("4");
+            lines.add(item.getDescription());
+            lines.add("4");
+            return new String[] { "Successfully updated description!" };
+      }
+   }// end script
+
+   /* Queues the orders a customer session placed for the employee sessions to pay */
+   private void collectOrders(String output) {
+      Matcher matcher = ORDER_PLACED.matcher(output);
+      while (matcher.find())
+         this._placed.add(Integer.valueOf(matcher.group(1)));
+   }// end collectOrders
+
+   /* True when the session printed one of the messages and did not run out of input */
+   private static boolean succeeded(String output, String[] success) {
+      if (output.contains(LOGIN_FAILED) || output.contains(INPUT_CLOSED))
+         return false;
+      for (String message : success) {
+         if (output.contains(message))
+            return true;
+      }
+      return false;
+   }// end succeeded
+
+   /* Pauses a random time with THINK_MS as the mean */
+   private static void think(Random random) throws InterruptedException {
+      if (THINK_MS <= 0)
+         return;
+      Thread.sleep((long) (-THINK_MS * Math.log(1.0 - random.nextDouble())));
+   }// end think
+
+   private void printProgress() {
+      long sessions = 0;
+      long errors = 0;
+      for (RoleStats stats : this._stats.values()) {
+         sessions += stats.latency.getCount();
+         errors += stats.errors.get();
+      }
+      double seconds = (System.nanoTime() - this._measureStart) / 1e9;
+      System.out.println(String.format("%6.0fs %10d sessions %10.1f/s %8d errors", seconds, sessions,
+            sessions / seconds, errors));
+   }// end printProgress
+
+   /* Prints the per role results and the statement metrics */
+   private boolean printReport(double seconds) {
+      System.out.println(String.format("%-9s %9s %9s %9s %9s %9s %9s %9s %8s", "role", "sessions", "per s",
+            "mean ms", "p50 ms", "p95 ms", "p99 ms", "max ms", "errors"));
+      long sessions = 0;
+      long errors = 0;
+      for (Map.Entry<Role, RoleStats> entry : this._stats.entrySet()) {
+         LatencyHistogram latency = entry.getValue().latency;
+         long count = latency.getCount();
+         if (count == 0)
+            continue;
+         long failed = entry.getValue().errors.get();
+         sessions += count;
+         errors += failed;
+         System.out.println(String.format("%-9s %9d %9.1f %9.3f %9.3f %9.3f %9.3f %9.3f %7.2f%%",
+               entry.getKey().getDbValue(), count, count / seconds, latency.getMean() / 1e6,
+               latency.getPercentile(0.50) / 1e6, latency.getPercentile(0.95) / 1e6,
+               latency.getPercentile(0.99) / 1e6, latency.getMax() / 1e6, 100.0 * failed / count));
+      }
+      System.out.println(String.format("total: %d sessions, %.1f per second, %d failed", sessions,
+            sessions / seconds, errors));
+      System.out.println();
+      System.out.print(this._esql.getMetrics().toText());
+      return errors == 0;
+   }// end printReport
+
+   /* Groups the logins and passwords of the file by role */
+   private void readLogins(String path) throws IOException {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(";", -1);
+            Role role = fields.length == 5 ? Role.fromDbValue(fields[4]) : null;
+            if (role == null)
+               continue;
+            List<String[]> logins = this._logins.get(role);
+            if (logins == null) {
+               logins = new ArrayList<String[]>();
+               this._logins.put(role, logins);
+            }
+            logins.add(new String[] { fields[0].trim(), fields[2] });
+         }
+      } finally {
+         reader.close();
+      }
+   }// end readLogins
+
+   /*
+    * Parses role=weight pairs separated by commas
+    *
+    * @throws IllegalArgumentException on an unknown role or a bad weight
+    **/
+   static Map<Role, Integer> parseMix(String mix) {
+      Map<Role, Integer> weights = new EnumMap<Role, Integer>(Role.class);
+      for (String pair : mix.split(",")) {
+         String[] parts = pair.split("=");
+         Role role = parts.length == 2 ? Role.fromDbValue(parts[0]) : null;
+         if (role == null)
+            throw new IllegalArgumentException("Bad cafe.load.mix entry: " + pair);
+         int weight = Integer.parseInt(parts[1].trim());
+         if (weight < 0)
+            throw new IllegalArgumentException("Bad cafe.load.mix weight: " + pair);
+         weights.put(role, weight);
+      }
+      return weights;
+   }// end parseMix
+
+   /* Gives each virtual user a role so the roles are spread by their weights */
+   static Role[] assignRoles(Map<Role, Integer> weights, int users) {
+      int total = 0;
+      for (int weight : weights.values())
+         total += weight;
+      if (total <= 0)
+         throw new IllegalArgumentException("cafe.load.mix has no positive weight");
+      Role[] roles = new Role[users];
+      for (int i = 0; i < users; ++i) {
+         // the role whose share covers the middle of this user's slot
+         double position = (i + 0.5) * total / users;
+         double covered = 0;
+         for (Map.Entry<Role, Integer> entry : weights.entrySet()) {
+            covered += entry.getValue();
+            roles[i] = entry.getKey();
+            if (position < covered)
+               break;
+         }
+      }
+      return roles;
+   }// end assignRoles
+
+   private static <T> T pick(List<T> values, Random random) {
+      return values.get(random.nextInt(values.size()));
+   }// end pick
+
+}// end LoadGenerator
@@ -0,0 +1,194 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Read-mostly in-memory copy of the Menu table. Readers always see a
+ * complete, immutable snapshot that is swapped atomically when the menu is
+ * reloaded, so browsing the menu never touches the database.
+ *
+ * The snapshot is reloaded right after this process writes to the Menu
+ * table, and a background thread polls the MenuVersion stamp (bumped by a
+ * trigger on every Menu write) every cafe.menuCache.pollIntervalMs
+ * milliseconds so edits made by other instances show up as well. A
+ * database without the stamp (MenuVersion not migrated yet, or its row
+ * missing) is reloaded on every poll instead.
+ *
+ */
+public class MenuCache {
+
+   static final long POLL_INTERVAL_MS = Long.getLong("cafe.menuCache.pollIntervalMs", 5000L);
+
+   static final String VERSION_QUERY = "SELECT version FROM MenuVersion";
+
+   // version of a snapshot read without a stamp
+   static final long UNKNOWN_VERSION = -1L;
+   static final String MENU_QUERY = "SELECT " + MenuItem.COLUMNS + " FROM Menu ORDER BY type, itemName";
+
+   /* An immutable view of the menu at one version */
+   private static class Snapshot {
+      final long version;
+      final List<MenuItem> items;
+      final Map<String, MenuItem> byName;
+      final Map<String, List<MenuItem>> byType;
+
+      Snapshot(long version, List<MenuItem> items) {
+         Map<String, MenuItem> byName = new HashMap<String, MenuItem>();
+         Map<String, List<MenuItem>> byType = new HashMap<String, List<MenuItem>>();
+         for (MenuItem item : items) {
+            byName.put(item.getItemName(), item);
+            List<MenuItem> ofType = byType.get(item.getType());
+            if (ofType == null) {
+               ofType = new ArrayList<MenuItem>();
+               byType.put(item.getType(), ofType);
+            }
+            ofType.add(item);
+         }
+         for (Map.Entry<String, List<MenuItem>> entry : byType.entrySet())
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+
+         this.version = version;
+         this.items = Collections.unmodifiableList(items);
+         this.byName = byName;
+         this.byType = byType;
+      }
+   }// end Snapshot
+
+   // database the menu is loaded from
+   private final Cafe _esql;
+
+   // the menu currently served to readers, null until first loaded
+   private final AtomicReference<Snapshot> _snapshot = new AtomicReference<Snapshot>();
+
+   // background thread watching the version stamp
+   private Thread _poller = null;
+
+   private volatile boolean _stopped = false;
+
+   /**
+    * Creates an empty cache. Call refresh or start to load the menu.
+    *
+    * @param esql the database to load the menu from
+    */
+   public MenuCache(Cafe esql) {
+      this._esql = esql;
+   }// end MenuCache
+
+   /**
+    * Loads the menu and starts the background thread that picks up edits
+    * made by other instances.
+    *
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public synchronized void start() throws SQLException {
+      refresh();
+      if (this._poller != null || POLL_INTERVAL_MS <= 0)
+         return;
+      this._poller = new Thread(new Runnable() {
+         public void run() {
+            poll();
+         }
+      }, "cafe-menu-cache-poller");
+      this._poller.setDaemon(true);
+      this._poller.start();
+   }// end start
+
+   /**
+    * Stops the background polling thread.
+    */
+   public synchronized void stop() {
+      this._stopped = true;
+      if (this._poller != null)
+         this._poller.interrupt();
+   }// end stop
+
+   /**
+    * Reloads the whole menu from the database and swaps it in. Called after
+    * every write to the Menu table.
+    *
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public void refresh() throws SQLException {
+      // read the stamp first so a concurrent edit at worst causes one more reload
+      long version = readVersion();
+      List<MenuItem> items = new ArrayList<MenuItem>();
+      for (List<String> record : this._esql.executeQueryAndReturnResult(MENU_QUERY, new Object[0]))
+         items.add(MenuItem.fromRecord(record));
+      this._snapshot.set(new Snapshot(version, items));
+   }// end refresh
+
+   /**
+    * @return every item on the menu, ordered by type and name
+    * @throws java.sql.SQLException when the menu had to be loaded and failed
+    */
+   public List<MenuItem> getItems() throws SQLException {
+      return current().items;
+   }// end getItems
+
+   /**
+    * @param type the item type (Drinks, Soup, Sweets)
+    * @return the items of that type, empty if there are none
+    * @throws java.sql.SQLException when the menu had to be loaded and failed
+    */
+   public List<MenuItem> getItemsByType(String type) throws SQLException {
+      List<MenuItem> items = current().byType.get(type);
+      return items == null ? Collections.<MenuItem>emptyList() : items;
+   }// end getItemsByType
+
+   /**
+    * @param itemName the exact item name
+    * @return the item, or null if it is not on the menu
+    * @throws java.sql.SQLException when the menu had to be loaded and failed
+    */
+   public MenuItem getItem(String itemName) throws SQLException {
+      if (itemName == null)
+         return null;
+      return current().byName.get(itemName.trim());
+   }// end getItem
+
+   /* Returns the current snapshot, loading it on first use */
+   private Snapshot current() throws SQLException {
+      Snapshot snapshot = this._snapshot.get();
+      if (snapshot == null) {
+         refresh();
+         snapshot = this._snapshot.get();
+      }
+      return snapshot;
+   }// end current
+
+   /* Reads the stamp bumped by the Menu trigger, UNKNOWN_VERSION when there is none */
+   private long readVersion() {
+      try {
+         List<List<String>> result = this._esql.executeQueryAndReturnResult(VERSION_QUERY, new Object[0]);
+         if (result.isEmpty())
+            return UNKNOWN_VERSION;
+         return Long.parseLong(result.get(0).get(0).trim());
+      } catch (SQLException e) {
+         // MenuVersion does not exist yet, see migrate_menu_version.sql
+         return UNKNOWN_VERSION;
+      }
+   }// end readVersion
+
+   /* Reloads the menu whenever the version stamp moves */
+   private void poll() {
+      while (!this._stopped) {
+         try {
+            Thread.sleep(POLL_INTERVAL_MS);
+         } catch (InterruptedException e) {
+            return;
+         }
+         try {
+            Snapshot snapshot = this._snapshot.get();
+            if (snapshot == null || snapshot.version == UNKNOWN_VERSION || snapshot.version != readVersion())
+               refresh();
+         } catch (SQLException e) {
+            // keep serving the last snapshot and retry on the next tick
+         }
+      }
+   }// end poll
+
+}// end MenuCache
@@ -0,0 +1,69 @@
+import java.util.List;
+
+/**
+ * One row of the Menu table. Records are mapped through Columns, which
+ * types the price and strips the trailing blanks that char(n) columns of
+ * databases created before the varchar switch still return.
+ *
+ */
+public class MenuItem {
+
+   // select list matching the order fromRecord expects
+   public static final String COLUMNS = "itemName, type, price, description, imageURL";
+
+   private final String _itemName;
+   private final String _type;
+   private final float _price;
+   private final String _description;
+   private final String _imageURL;
+
+   /**
+    * Creates a menu item
+    *
+    * @param itemName    the unique item name
+    * @param type        the item type (Drinks, Soup, Sweets)
+    * @param price       the item price
+    * @param description the item description, may be null
+    * @param imageURL    the item image URL, may be null
+    */
+   public MenuItem(String itemName, String type, float price, String description, String imageURL) {
+      this._itemName = itemName;
+      this._type = type;
+      this._price = price;
+      this._description = description;
+      this._imageURL = imageURL;
+   }// end MenuItem
+
+   /**
+    * Builds a menu item from a record returned by
+    * executeQueryAndReturnResult for a SELECT of COLUMNS.
+    *
+    * @param record the attribute values in column order
+    * @return the menu item
+    */
+   public static MenuItem fromRecord(List<String> record) {
+      return new MenuItem(Columns.trim(record.get(0)), Columns.trim(record.get(1)), Columns.toFloat(record.get(2)),
+            Columns.trim(record.get(3)), Columns.trim(record.get(4)));
+   }// end fromRecord
+
+   public String getItemName() {
+      return this._itemName;
+   }
+
+   public String getType() {
+      return this._type;
+   }
+
+   public float getPrice() {
+      return this._price;
+   }
+
+   public String getDescription() {
+      return this._description;
+   }
+
+   public String getImageURL() {
+      return this._imageURL;
+   }
+
+}// end MenuItem
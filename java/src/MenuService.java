@@ -0,0 +1,163 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Reads and edits the menu without any console input or output, so it can
+ * be called from any number of threads at once.
+ *
+ * Reads are served from the menu cache. Every edit is a single statement
+ * that only applies if the menu still allows it (the item exists, or the
+ * new name is free), and reloads the cache when something changed.
+ *
+ */
+public class MenuService {
+
+   // one whole menu row by name.
+   static final String ITEM_QUERY = "SELECT " + MenuItem.COLUMNS + " FROM Menu WHERE itemName = ?";
+
+   private final Cafe _esql;
+
+   /**
+    * Creates the service
+    *
+    * @param esql the database holding the menu
+    */
+   public MenuService(Cafe esql) {
+      this._esql = esql;
+   }// end MenuService
+
+   /**
+    * @return every menu item, by type and then name
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public List<MenuItem> getItems() throws SQLException {
+      return this._esql.getMenuCache().getItems();
+   }// end getItems
+
+   /**
+    * @param type an item type
+    * @return the menu items of the type, by name
+    * @throws java.sql.SQLException when the menu could not be loaded
+    */
+   public List<MenuItem> getItemsByType(String type) throws SQLException {
+      return this._esql.getMenuCache().getItemsByType(type);
+   }// end getItemsByType
+
+   /**
+    * Looks an item up in the menu cache, falling back to the database for
+    * items added by another instance since the last refresh. Surrounding
+    * blanks of the name are ignored by both lookups.
+    *
+    * @param name the item name
+    * @return the item, or null if there is no such item
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public MenuItem find(String name) throws SQLException {
+      if (name == null)
+         return null;
+      name = name.trim();
+      MenuItem item = this._esql.getMenuCache().getItem(name);
+      if (item == null)
+         item = fetch(name);
+      return item;
+   }// end find
+
+   /**
+    * Reads an item from the database, bypassing the cache.
+    *
+    * @param name the item name
+    * @return the item, or null if there is no such item
+    * @throws java.sql.SQLException when the query failed
+    */
+   public MenuItem fetch(String name) throws SQLException {
+      List<List<String>> result = this._esql.executeQueryAndReturnResult(ITEM_QUERY, name);
+      if (result.isEmpty())
+         return null;
+      return MenuItem.fromRecord(result.get(0));
+   }// end fetch
+
+   /**
+    * Adds an item to the menu.
+    *
+    * @param item the item to add
+    * @return false if an item with that name is already on the menu
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public boolean addItem(MenuItem item) throws SQLException {
+      String query = "INSERT INTO Menu (itemName, type, price, description, imageURL) SELECT ?, ?, ?, ?, ? "
+            + "WHERE NOT EXISTS (SELECT 1 FROM Menu WHERE itemName = ?)";
+      return changed(this._esql.executeUpdate(query, item.getItemName(), item.getType(), item.getPrice(),
+            item.getDescription(), item.getImageURL(), item.getItemName()));
+   }// end addItem
+
+   /**
+    * @param name the item name
+    * @return false if there was no such item
+    * @throws java.sql.SQLException when the delete failed
+    */
+   public boolean deleteItem(String name) throws SQLException {
+      return changed(this._esql.executeUpdate("DELETE FROM Menu WHERE itemName = ?", name));
+   }// end deleteItem
+
+   /**
+    * @param name    the current item name
+    * @param newName the new item name
+    * @return false if there is no such item or the new name is taken
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean renameItem(String name, String newName) throws SQLException {
+      String query = "UPDATE Menu SET itemName = ? WHERE itemName = ? "
+            + "AND NOT EXISTS (SELECT 1 FROM Menu WHERE itemName = ?)";
+      return changed(this._esql.executeUpdate(query, newName, name, newName));
+   }// end renameItem
+
+   /**
+    * @param name the item name
+    * @param type the new item type
+    * @return false if there is no such item
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateType(String name, String type) throws SQLException {
+      return changed(this._esql.executeUpdate("UPDATE Menu SET type = ? WHERE itemName = ?", type, name));
+   }// end updateType
+
+   /**
+    * @param name  the item name
+    * @param price the new price
+    * @return false if there is no such item
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updatePrice(String name, float price) throws SQLException {
+      return changed(this._esql.executeUpdate("UPDATE Menu SET price = ? WHERE itemName = ?", price, name));
+   }// end updatePrice
+
+   /**
+    * @param name        the item name
+    * @param description the new description
+    * @return false if there is no such item
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateDescription(String name, String description) throws SQLException {
+      return changed(this._esql.executeUpdate("UPDATE Menu SET description = ? WHERE itemName = ?", description,
+            name));
+   }// end updateDescription
+
+   /**
+    * @param name     the item name
+    * @param imageURL the new image URL
+    * @return false if there is no such item
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateImageURL(String name, String imageURL) throws SQLException {
+      return changed(this._esql.executeUpdate("UPDATE Menu SET imageURL = ? WHERE itemName = ?", imageURL, name));
+   }// end updateImageURL
+
+   /* Reloads the cache after a write that changed rows */
+   private boolean changed(int rows) throws SQLException {
+      if (rows == 0)
+         return false;
+      this._esql.getMenuCache().refresh();
+      return true;
+   }// end changed
+
+}// end MenuService
@@ -0,0 +1,75 @@
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out Orders.orderid values reserved in blocks from the
+ * orders_orderid_seq sequence, so placing an order does not need its own
+ * round-trip to obtain an id.
+ *
+ * A block is reserved with one query calling nextval cafe.orderId.blockSize
+ * times, so the ids stay unique across any number of app instances and
+ * whatever the sequence increment is. Ids are taken from the current block
+ * without locking; only the thread that finds the block exhausted reserves
+ * the next one. Ids left in a block when the process exits are skipped.
+ *
+ */
+public class OrderIdAllocator {
+
+   static final int BLOCK_SIZE = Integer.getInteger("cafe.orderId.blockSize", 50);
+
+   static final String RESERVE_QUERY = "SELECT nextval('orders_orderid_seq') FROM generate_series(1, ?)";
+
+   /* A reserved run of ids and the position of the next one to hand out */
+   private static class Block {
+      final int[] ids;
+      final AtomicInteger next = new AtomicInteger();
+
+      Block(int[] ids) {
+         this.ids = ids;
+      }
+   }// end Block
+
+   private final Cafe _esql;
+
+   // block ids are currently taken from, null before the first reservation
+   private final AtomicReference<Block> _current = new AtomicReference<Block>();
+
+   /**
+    * Creates an allocator. No ids are reserved until the first call.
+    *
+    * @param esql the database holding the sequence
+    */
+   public OrderIdAllocator(Cafe esql) {
+      this._esql = esql;
+   }// end OrderIdAllocator
+
+   /**
+    * @return an order id no other caller or instance will receive
+    * @throws java.sql.SQLException when a new block could not be reserved
+    */
+   public int nextId() throws SQLException {
+      while (true) {
+         Block block = this._current.get();
+         if (block != null) {
+            int i = block.next.getAndIncrement();
+            if (i < block.ids.length)
+               return block.ids[i];
+         }
+         reserve(block);
+      }
+   }// end nextId
+
+   /* Replaces the exhausted block, unless another thread already did */
+   private synchronized void reserve(Block exhausted) throws SQLException {
+      if (this._current.get() != exhausted)
+         return;
+      List<List<String>> result = this._esql.executeQueryAndReturnResult(RESERVE_QUERY, Math.max(1, BLOCK_SIZE));
+      int[] ids = new int[result.size()];
+      for (int i = 0; i < ids.length; ++i)
+         ids[i] = Columns.toInt(result.get(i).get(0));
+      this._current.set(new Block(ids));
+   }// end reserve
+
+}// end OrderIdAllocator
@@ -0,0 +1,166 @@
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places orders, reads order history and records payments, without any
+ * console input or output, so it can be called from any number of threads
+ * at once.
+ *
+ */
+public class OrderService {
+
+   // a page of a user's orders with their items, newest first; the AFTER
+   // form continues after the (timeStampRecieved, orderid) of the last order shown.
+   static final String ORDER_HISTORY_SELECT = "SELECT o.orderid, o.timeStampRecieved, o.total, o.paid, "
+         + "s.itemName, s.status, s.comments "
+         + "FROM (SELECT orderid, timeStampRecieved, total, paid FROM Orders WHERE login = ? ";
+   static final String ORDER_HISTORY_PAGE = "ORDER BY timeStampRecieved DESC, orderid DESC LIMIT ?) o "
+         + "LEFT JOIN ItemStatus s ON s.orderid = o.orderid "
+         + "ORDER BY o.timeStampRecieved DESC, o.orderid DESC, s.itemName";
+   static final String ORDER_HISTORY_QUERY = ORDER_HISTORY_SELECT + ORDER_HISTORY_PAGE;
+   static final String ORDER_HISTORY_AFTER_QUERY = ORDER_HISTORY_SELECT
+         + "AND (timeStampRecieved, orderid) < (CAST(? AS timestamp), ?) " + ORDER_HISTORY_PAGE;
+
+   // unpaid orders, oldest first, for the payment screen.
+   static final String UNPAID_ORDERS_QUERY = "SELECT orderid, login, timeStampRecieved, total FROM Orders "
+         + "WHERE paid = false ORDER BY timeStampRecieved, orderid LIMIT ?";
+
+   // the order and the status rows of its items, from item name and comment arrays.
+   static final String PLACE_ORDER_QUERY = "WITH new_order AS (INSERT INTO Orders "
+         + "(orderid, login, paid, timeStampRecieved, total) VALUES (?, ?, false, now(), ?)) "
+         + "INSERT INTO ItemStatus (orderid, itemName, lastUpdated, status, comments) "
+         + "SELECT ?, i.itemName, now(), ?, i.comments "
+         + "FROM unnest(CAST(? AS text[]), CAST(? AS text[])) AS i(itemName, comments)";
+
+   // marks the still unpaid orders of an integer array literal as paid.
+   static final String MARK_PAID_QUERY = "UPDATE Orders SET paid = true "
+         + "WHERE orderid = ANY (CAST(? AS integer[])) AND paid = false RETURNING orderid";
+
+   private final Cafe _esql;
+
+   /**
+    * Creates the service
+    *
+    * @param esql the database holding the orders
+    */
+   public OrderService(Cafe esql) {
+      this._esql = esql;
+   }// end OrderService
+
+   /**
+    * Adds up the menu prices of the ordered items.
+    *
+    * @param items the quantity of each item name
+    * @return the order total
+    * @throws java.sql.SQLException when an item is not on the menu
+    */
+   public BigDecimal total(Map<String, Integer> items) throws SQLException {
+      BigDecimal total = BigDecimal.ZERO;
+      for (Map.Entry<String, Integer> line : items.entrySet()) {
+         MenuItem item = this._esql.getMenuService().find(line.getKey());
+         if (item == null)
+            throw new SQLException(line.getKey() + " is not on the menu!");
+         total = total.add(new BigDecimal(Float.toString(item.getPrice())).multiply(new BigDecimal(line.getValue())));
+      }
+      return total;
+   }// end total
+
+   /**
+    * Inserts the order and the status row of every item with a single
+    * statement, so placing an order is one round-trip and needs no explicit
+    * transaction. The items are bound as arrays, so the statement text is
+    * the same for any number of items. The order id comes from the
+    * preallocated block.
+    *
+    * @param login the ordering user
+    * @param items the quantity of each item name
+    * @return the new order id
+    * @throws java.sql.SQLException when an item is not on the menu or the
+    *                               insert failed
+    */
+   public int placeOrder(String login, Map<String, Integer> items) throws SQLException {
+      BigDecimal total = total(items);
+      int orderid = this._esql.getOrderIds().nextId();
+
+      List<String> names = new ArrayList<String>(items.size());
+      List<String> comments = new ArrayList<String>(items.size());
+      for (Map.Entry<String, Integer> line : items.entrySet()) {
+         names.add(line.getKey());
+         comments.add(line.getValue() > 1 ? "Quantity: " + line.getValue() : "");
+      }
+      this._esql.executeUpdate(PLACE_ORDER_QUERY, orderid, login, total.floatValue(), orderid,
+            Cafe.STATUS_NOT_STARTED, Columns.toArray(names), Columns.toArray(comments));
+      return orderid;
+   }// end placeOrder
+
+   /**
+    * Returns up to limit of the user's orders received before the given
+    * order, newest first, with one row per ordered item. Pages continue
+    * after the last order shown (keyset paging on the Orders(login,
+    * timeStampRecieved, orderid) index), so later pages cost the same as
+    * the first.
+    *
+    * @param login     the user
+    * @param afterTime timeStampRecieved of the last order shown, null to
+    *                  start from the newest order
+    * @param afterId   orderid of the last order shown
+    * @param limit     the number of orders
+    * @return records of orderid, received, total, paid, itemname, status and
+    *         comments
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<List<String>> history(String login, String afterTime, int afterId, int limit) throws SQLException {
+      if (afterTime == null)
+         return this._esql.executeQueryAndReturnResult(ORDER_HISTORY_QUERY, login, limit);
+      return this._esql.executeQueryAndReturnResult(ORDER_HISTORY_AFTER_QUERY, login, afterTime, afterId, limit);
+   }// end history
+
+   /**
+    * @param limit the number of orders
+    * @return records of orderid, login, received and total of the oldest
+    *         unpaid orders
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<List<String>> unpaidOrders(int limit) throws SQLException {
+      return this._esql.executeQueryAndReturnResult(UNPAID_ORDERS_QUERY, limit);
+   }// end unpaidOrders
+
+   /**
+    * Marks the orders as paid with a single statement. Only orders still
+    * unpaid are updated, so an order paid on another register in the
+    * meantime is not counted twice.
+    *
+    * @param orderids the orders to mark
+    * @return the ids that were updated
+    * @throws java.sql.SQLException when the update failed
+    */
+   public List<Integer> markPaid(List<Integer> orderids) throws SQLException {
+      List<Integer> paid = new ArrayList<Integer>();
+      if (orderids.isEmpty())
+         return paid;
+      StringBuilder array = new StringBuilder("{");
+      for (Integer orderid : orderids) {
+         if (array.length() > 1)
+            array.append(',');
+         array.append(orderid.intValue());
+      }
+      array.append('}');
+      for (List<String> record : this._esql.executeQueryAndReturnResult(MARK_PAID_QUERY, array.toString()))
+         paid.add(Columns.toInt(record.get(0)));
+      return paid;
+   }// end markPaid
+
+   /**
+    * @param orderid the order to mark
+    * @return false if the order does not exist or is not paid
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean markUnpaid(int orderid) throws SQLException {
+      String query = "UPDATE Orders SET paid = false WHERE orderid = ? AND paid = true";
+      return this._esql.executeUpdate(query, orderid) > 0;
+   }// end markUnpaid
+
+}// end OrderService
@@ -0,0 +1,312 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashing for the Users.password column.
+ *
+ * Hashes are stored as pbkdf2-&lt;digest&gt;$&lt;iterations&gt;$&lt;salt&gt;$&lt;hash&gt;
+ * so the cost can be raised later without invalidating existing passwords.
+ * The cost for new hashes is set with cafe.password.iterations.
+ *
+ * Hashing runs on a small bounded pool (cafe.password.threads threads,
+ * cafe.password.queue waiting requests) so a burst of logins cannot take
+ * every CPU away from the sessions. A successful verification is remembered
+ * for cafe.password.cacheTtlMs as a fast salted digest, so a user logging
+ * in again on another register does not pay the full cost twice.
+ *
+ */
+public class PasswordHasher {
+
+   static final int ITERATIONS = Integer.getInteger("cafe.password.iterations", 65536);
+   static final int THREADS = Integer.getInteger("cafe.password.threads",
+         Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+   static final int QUEUE = Integer.getInteger("cafe.password.queue", 64);
+   static final long CACHE_TTL_MS = Long.getLong("cafe.password.cacheTtlMs", 5L * 60L * 1000L);
+   static final int CACHE_SIZE = Integer.getInteger("cafe.password.cacheSize", 1024);
+   static final long TIMEOUT_MS = 10000L;
+
+   static final String PREFIX = "pbkdf2-";
+   static final int SALT_BYTES = 16;
+   static final int HASH_BITS = 256;
+
+   // strongest HMAC digest this JVM offers for PBKDF2, Java 7 only has SHA1
+   static final String PRF = pickPrf();
+
+   private static final SecureRandom RANDOM = new SecureRandom();
+
+   /* A remembered successful verification */
+   private static class Verified {
+      final byte[] digest;
+      final long expiresAt;
+
+      Verified(byte[] digest, long expiresAt) {
+         this.digest = digest;
+         this.expiresAt = expiresAt;
+      }
+   }// end Verified
+
+   private final ThreadPoolExecutor _workers = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS,
+         new ArrayBlockingQueue<Runnable>(QUEUE), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "cafe-password-hasher");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+
+   // stored hash to digest of the password that last matched it
+   private final LinkedHashMap<String, Verified> _verified = new LinkedHashMap<String, Verified>(
+         16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+         return size() > CACHE_SIZE;
+      }
+   };
+
+   /**
+    * Hashes a new password with the configured cost, on the hashing pool.
+    *
+    * @param password the plaintext password
+    * @return the value to store in Users.password
+    * @throws java.sql.SQLException when the hashing pool is saturated
+    */
+   public String hash(final String password) throws SQLException {
+      return await(new Callable<String>() {
+         public String call() throws Exception {
+            return hash(password, ITERATIONS);
+         }
+      });
+   }// end hash
+
+   /**
+    * Hashes many new passwords on the hashing pool, keeping at most half of
+    * its queue waiting so logins in the meantime are not turned away.
+    *
+    * @param passwords the plaintext passwords
+    * @return the values to store in Users.password, in the same order
+    * @throws java.sql.SQLException when the hashing pool is saturated
+    */
+   public List<String> hashAll(List<String> passwords) throws SQLException {
+      List<String> hashes = new ArrayList<String>(passwords.size());
+      int window = Math.max(1, QUEUE / 2);
+      for (int from = 0; from < passwords.size(); from += window) {
+         List<Future<String>> results = new ArrayList<Future<String>>(window);
+         for (final String password : passwords.subList(from, Math.min(passwords.size(), from + window))) {
+            results.add(submit(new Callable<String>() {
+               public String call() throws Exception {
+                  return hash(password, ITERATIONS);
+               }
+            }));
+         }
+         for (Future<String> result : results)
+            hashes.add(get(result));
+      }
+      return hashes;
+   }// end hashAll
+
+   /**
+    * Checks a password against a stored value, on the hashing pool.
+    * Values stored before hashing was introduced are compared as plaintext;
+    * callers should then store a fresh hash (see needsRehash).
+    *
+    * @param password the plaintext password entered
+    * @param stored   the value of Users.password
+    * @return true if the password matches
+    * @throws java.sql.SQLException when the hashing pool is saturated
+    */
+   public boolean verify(final String password, final String stored) throws SQLException {
+      if (password == null || stored == null)
+         return false;
+      if (!stored.startsWith(PREFIX))
+         return constantTimeEquals(utf8(password), utf8(stored));
+
+      byte[] digest = quickDigest(password, stored);
+      if (isRemembered(stored, digest))
+         return true;
+      boolean matches = await(new Callable<Boolean>() {
+         public Boolean call() throws Exception {
+            return matches(password, stored);
+         }
+      });
+      if (matches)
+         remember(stored, digest);
+      return matches;
+   }// end verify
+
+   /**
+    * @param stored the value of Users.password
+    * @return true if the value is plaintext or hashed with a lower cost
+    */
+   public boolean needsRehash(String stored) {
+      if (stored == null || !stored.startsWith(PREFIX))
+         return true;
+      String[] parts = stored.split("\\$");
+      return parts.length != 4 || Integer.parseInt(parts[1]) < ITERATIONS;
+   }// end needsRehash
+
+   /**
+    * Stops the hashing threads.
+    */
+   public void shutdown() {
+      this._workers.shutdown();
+   }// end shutdown
+
+   /**
+    * Hashes a password with a fresh salt on the calling thread.
+    *
+    * @param password   the plaintext password
+    * @param iterations the PBKDF2 iteration count
+    * @return the encoded hash
+    */
+   public static String hash(String password, int iterations) {
+      byte[] salt = new byte[SALT_BYTES];
+      RANDOM.nextBytes(salt);
+      byte[] hash = pbkdf2(PRF, password, salt, iterations);
+      return PREFIX + PRF.toLowerCase() + "$" + iterations + "$" + toHex(salt) + "$" + toHex(hash);
+   }// end hash
+
+   /**
+    * Checks a password against an encoded hash on the calling thread.
+    *
+    * @param password the plaintext password
+    * @param stored   the encoded hash
+    * @return true if the password matches
+    */
+   public static boolean matches(String password, String stored) {
+      String[] parts = stored.split("\\$");
+      if (parts.length != 4)
+         return false;
+      String prf = parts[0].substring(PREFIX.length()).toUpperCase();
+      if (!prf.equals("SHA1") && !prf.equals("SHA256"))
+         return false;
+      byte[] expected = fromHex(parts[3]);
+      byte[] actual = pbkdf2(prf, password, fromHex(parts[2]), Integer.parseInt(parts[1]));
+      return constantTimeEquals(expected, actual);
+   }// end matches
+
+   /* Runs a hashing task on the pool and waits for it */
+   private <T> T await(Callable<T> task) throws SQLException {
+      return get(submit(task));
+   }// end await
+
+   private <T> Future<T> submit(Callable<T> task) throws SQLException {
+      try {
+         return this._workers.submit(task);
+      } catch (RejectedExecutionException e) {
+         throw new SQLException("Too many logins in progress, please try again");
+      }
+   }// end submit
+
+   /* Waits for a hashing task, cancelling it when the wait ends early */
+   private static <T> T get(Future<T> result) throws SQLException {
+      try {
+         return result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         result.cancel(true);
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while checking the password");
+      } catch (TimeoutException e) {
+         result.cancel(true);
+         throw new SQLException("Timed out while checking the password");
+      } catch (ExecutionException e) {
+         throw new SQLException("Password hashing failed: " + e.getCause().getMessage());
+      }
+   }// end get
+
+   private synchronized boolean isRemembered(String stored, byte[] digest) {
+      Verified verified = this._verified.get(stored);
+      if (verified == null)
+         return false;
+      if (System.currentTimeMillis() >= verified.expiresAt) {
+         this._verified.remove(stored);
+         return false;
+      }
+      return constantTimeEquals(verified.digest, digest);
+   }// end isRemembered
+
+   private synchronized void remember(String stored, byte[] digest) {
+      if (CACHE_TTL_MS > 0)
+         this._verified.put(stored, new Verified(digest, System.currentTimeMillis() + CACHE_TTL_MS));
+   }// end remember
+
+   /* Cheap salted digest identifying the password that matched a stored hash */
+   private static byte[] quickDigest(String password, String stored) {
+      try {
+         MessageDigest sha = MessageDigest.getInstance("SHA-256");
+         sha.update(utf8(stored));
+         sha.update((byte) 0);
+         return sha.digest(utf8(password));
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }// end quickDigest
+
+   private static byte[] pbkdf2(String prf, String password, byte[] salt, int iterations) {
+      try {
+         PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+         try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmac" + prf).generateSecret(spec).getEncoded();
+         } finally {
+            spec.clearPassword();
+         }
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      } catch (InvalidKeySpecException e) {
+         throw new IllegalStateException(e);
+      }
+   }// end pbkdf2
+
+   private static String pickPrf() {
+      try {
+         SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+         return "SHA256";
+      } catch (NoSuchAlgorithmException e) {
+         return "SHA1";
+      }
+   }// end pickPrf
+
+   private static boolean constantTimeEquals(byte[] a, byte[] b) {
+      return MessageDigest.isEqual(a, b);
+   }// end constantTimeEquals
+
+   private static byte[] utf8(String value) {
+      try {
+         return value.getBytes("UTF-8");
+      } catch (java.io.UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }// end utf8
+
+   private static String toHex(byte[] bytes) {
+      StringBuilder hex = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes)
+         hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      return hex.toString();
+   }// end toHex
+
+   private static byte[] fromHex(String hex) {
+      byte[] bytes = new byte[hex.length() / 2];
+      for (int i = 0; i < bytes.length; ++i)
+         bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+      return bytes;
+   }// end fromHex
+
+}// end PasswordHasher
@@ -0,0 +1,110 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Regression check for the indexes in create_indexes.sql. Runs EXPLAIN on
+ * every hot query the app issues, with sequential scans disabled, and fails
+ * if a plan still contains a Seq Scan, which means no index matches the
+ * query's predicate or order any more.
+ *
+ * Run with Cafe &lt;dbname&gt; &lt;port&gt; &lt;user&gt; --check-plans after
+ * changing a hot query or an index.
+ *
+ */
+public class PlanCheck {
+
+   /* A query checked by name, with sample values for its placeholders */
+   private static class HotQuery {
+      final String name;
+      final String sql;
+      final Object[] params;
+
+      HotQuery(String name, String sql, Object... params) {
+         this.name = name;
+         this.sql = sql;
+         this.params = params;
+      }
+   }// end HotQuery
+
+   static final List<HotQuery> HOT_QUERIES = new ArrayList<HotQuery>();
+   static {
+      HOT_QUERIES.add(new HotQuery("login", UserService.LOGIN_QUERY, "Admin"));
+      HOT_QUERIES.add(new HotQuery("menu item", MenuService.ITEM_QUERY, "Coffee"));
+      HOT_QUERIES.add(new HotQuery("order history", OrderService.ORDER_HISTORY_QUERY, "Admin", 10));
+      HOT_QUERIES.add(new HotQuery("order history page", OrderService.ORDER_HISTORY_AFTER_QUERY, "Admin",
+            "2023-01-01 00:00:00", 1, 10));
+      HOT_QUERIES.add(new HotQuery("unpaid orders", OrderService.UNPAID_ORDERS_QUERY, 20));
+      HOT_QUERIES.add(new HotQuery("mark paid", OrderService.MARK_PAID_QUERY, "{1,2}"));
+      HOT_QUERIES.add(new HotQuery("kitchen queue", Cafe.KITCHEN_QUEUE_QUERY, Cafe.STATUS_NOT_STARTED,
+            Cafe.STATUS_STARTED));
+      HOT_QUERIES.add(new HotQuery("users favoriting", UserService.USERS_FAVORITING_QUERY, "Coffee"));
+   }
+
+   private final Cafe _esql;
+
+   /**
+    * Creates a check
+    *
+    * @param esql the database whose plans are checked
+    */
+   public PlanCheck(Cafe esql) {
+      this._esql = esql;
+   }// end PlanCheck
+
+   /**
+    * Explains every hot query and prints the plans that fall back to a
+    * sequential scan.
+    *
+    * @return true if no hot query needs a sequential scan
+    * @throws java.sql.SQLException when a query could not be explained
+    */
+   public boolean run() throws SQLException {
+      return this._esql.executeInTransaction(new TransactionCallback<Boolean>() {
+         public Boolean run(PooledConnection conn) throws SQLException {
+            Statement settings = conn.getConnection().createStatement();
+            try {
+               // SET LOCAL ends with this transaction
+               settings.executeUpdate("SET LOCAL enable_seqscan = off");
+            } finally {
+               settings.close();
+            }
+            boolean passed = true;
+            for (HotQuery query : HOT_QUERIES) {
+               List<String> plan = explain(conn, query);
+               boolean seqScan = false;
+               for (String line : plan)
+                  seqScan |= line.contains("Seq Scan");
+               System.out.println((seqScan ? "FAIL " : "ok   ") + query.name);
+               if (seqScan) {
+                  passed = false;
+                  for (String line : plan)
+                     System.out.println("     " + line);
+               }
+            }
+            return passed;
+         }
+      });
+   }// end run
+
+   /* Returns the plan of one query, a line per node */
+   private static List<String> explain(PooledConnection conn, HotQuery query) throws SQLException {
+      List<String> plan = new ArrayList<String>();
+      PreparedStatement stmt = conn.getConnection().prepareStatement("EXPLAIN " + query.sql);
+      try {
+         for (int i = 0; i < query.params.length; ++i)
+            stmt.setObject(i + 1, query.params[i]);
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            plan.add(rs.getString(1));
+         rs.close();
+      } finally {
+         stmt.close();
+      }
+      return plan;
+   }// end explain
+
+}// end PlanCheck
@@ -0,0 +1,147 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A physical database connection owned by a ConnectionPool, together with
+ * the bookkeeping the pool needs to validate, retire and track it.
+ *
+ */
+public class PooledConnection {
+
+   // the physical connection handed out to callers
+   private final Connection _connection;
+
+   // prepared statements kept open on this connection
+   private final StatementCache _statements;
+
+   // when the physical connection was opened
+   private final long _createdAt;
+
+   // when the connection was last given back to the pool
+   private volatile long _lastReleasedAt;
+
+   // when the connection was borrowed, 0 while it is idle
+   private volatile long _borrowedAt;
+
+   // where the connection was borrowed from, used to report leaks
+   private volatile Throwable _borrowSite;
+
+   // set once a leak has been reported so it is only reported once
+   private volatile boolean _leakReported;
+
+   // set when a statement failed while the connection was borrowed
+   private volatile boolean _suspect;
+
+   /**
+    * Wraps a freshly opened physical connection
+    *
+    * @param connection the physical connection
+    */
+   PooledConnection(Connection connection) {
+      this._connection = connection;
+      this._statements = new StatementCache(connection);
+      this._createdAt = System.currentTimeMillis();
+      this._lastReleasedAt = this._createdAt;
+   }// end PooledConnection
+
+   /**
+    * @return the physical connection to run statements on
+    */
+   public Connection getConnection() {
+      return this._connection;
+   }// end getConnection
+
+   /**
+    * @return the prepared statement cache of this connection
+    */
+   public StatementCache getStatementCache() {
+      return this._statements;
+   }// end getStatementCache
+
+   /**
+    * Flags the connection so that the pool validates it before it is
+    * handed out again. Callers invoke this when a statement failed.
+    */
+   public void markSuspect() {
+      this._suspect = true;
+   }// end markSuspect
+
+   boolean isSuspect() {
+      return this._suspect;
+   }
+
+   long getCreatedAt() {
+      return this._createdAt;
+   }
+
+   long getLastReleasedAt() {
+      return this._lastReleasedAt;
+   }
+
+   long getBorrowedAt() {
+      return this._borrowedAt;
+   }
+
+   Throwable getBorrowSite() {
+      return this._borrowSite;
+   }
+
+   boolean isLeakReported() {
+      return this._leakReported;
+   }
+
+   void setLeakReported() {
+      this._leakReported = true;
+   }
+
+   /* Records that the connection left the pool */
+   void onBorrow(Throwable borrowSite) {
+      this._borrowedAt = System.currentTimeMillis();
+      this._borrowSite = borrowSite;
+      this._leakReported = false;
+   }// end onBorrow
+
+   /* Records that the connection came back to the pool */
+   void onRelease() {
+      this._borrowedAt = 0;
+      this._borrowSite = null;
+      this._suspect = false;
+      this._lastReleasedAt = System.currentTimeMillis();
+   }// end onRelease
+
+   /**
+    * Runs a trivial query to check that the server is still reachable.
+    * The JDBC 3 driver has no Connection.isValid, so this is done by hand.
+    *
+    * @return true if the connection answered
+    */
+   boolean validate() {
+      try {
+         if (this._connection.isClosed())
+            return false;
+         Statement stmt = this._connection.createStatement();
+         try {
+            stmt.executeQuery("SELECT 1").close();
+         } finally {
+            stmt.close();
+         }
+         return true;
+      } catch (SQLException e) {
+         return false;
+      }
+   }// end validate
+
+   /**
+    * Closes the physical connection, ignoring errors.
+    */
+   void closeQuietly() {
+      this._statements.clear();
+      try {
+         this._connection.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }// end closeQuietly
+
+}// end PooledConnection
@@ -0,0 +1,288 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Timings of the statements run through the Cafe execute methods, kept per
+ * statement template: a latency histogram, the rows returned or affected
+ * and the number of failures. The time spent waiting for a pooled
+ * connection is kept separately.
+ *
+ * Parameterized statements are their own template; literals in plain SQL
+ * text are replaced by ? so one statement does not show up once per
+ * value. At most cafe.metrics.maxTemplates templates are tracked, later
+ * ones are counted together as &lt;other&gt;.
+ *
+ * The metrics are exported as text or in the Prometheus format:
+ * cafe.metrics.file names a file rewritten every
+ * cafe.metrics.dumpIntervalMs (format from cafe.metrics.format, text or
+ * prometheus), and cafe.metrics.port serves /metrics (Prometheus) and
+ * /metrics.txt on localhost.
+ *
+ */
+public class QueryMetrics {
+
+   static final int MAX_TEMPLATES = Integer.getInteger("cafe.metrics.maxTemplates", 256);
+   static final String FILE = System.getProperty("cafe.metrics.file");
+   static final String FORMAT = System.getProperty("cafe.metrics.format", "text");
+   static final long DUMP_INTERVAL_MS = Long.getLong("cafe.metrics.dumpIntervalMs", 10000L);
+   static final int PORT = Integer.getInteger("cafe.metrics.port", 0);
+
+   static final String OTHER = "<other>";
+
+   private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+   private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+   /* Counters of one statement template */
+   static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong rows = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+   }// end Stats
+
+   private final ConnectionPool _pool;
+
+   private final ConcurrentHashMap<String, Stats> _templates = new ConcurrentHashMap<String, Stats>();
+
+   private final LatencyHistogram _poolWait = new LatencyHistogram();
+   private final AtomicLong _poolErrors = new AtomicLong();
+
+   // background thread rewriting the metrics file
+   private Thread _dumper = null;
+   private HttpServer _server = null;
+
+   private volatile boolean _stopped = false;
+
+   /**
+    * Creates empty metrics.
+    *
+    * @param pool the pool whose connection counts are reported
+    */
+   public QueryMetrics(ConnectionPool pool) {
+      this._pool = pool;
+   }// end QueryMetrics
+
+   /**
+    * Records one statement.
+    *
+    * @param template   the SQL text with ? placeholders
+    * @param startNanos System.nanoTime() when the statement was issued
+    * @param rows       the rows returned or affected, negative if the
+    *                   statement failed
+    */
+   public void record(String template, long startNanos, long rows) {
+      Stats stats = stats(template);
+      stats.latency.record(System.nanoTime() - startNanos);
+      if (rows < 0)
+         stats.errors.incrementAndGet();
+      else
+         stats.rows.addAndGet(rows);
+   }// end record
+
+   /**
+    * Records the wait for a pooled connection.
+    *
+    * @param startNanos System.nanoTime() when the borrow started
+    * @param failed     true if no connection was handed out
+    */
+   public void recordPoolWait(long startNanos, boolean failed) {
+      this._poolWait.record(System.nanoTime() - startNanos);
+      if (failed)
+         this._poolErrors.incrementAndGet();
+   }// end recordPoolWait
+
+   /**
+    * @param sql plain SQL text
+    * @return the text with string and number literals replaced by ?
+    */
+   public static String template(String sql) {
+      String template = STRING_LITERAL.matcher(sql).replaceAll("?");
+      return NUMBER_LITERAL.matcher(template).replaceAll("?");
+   }// end template
+
+   /**
+    * @return the metrics as a table, slowest templates by total time first
+    */
+   public String toText() {
+      StringBuilder text = new StringBuilder();
+      text.append(String.format("%8s %9s %9s %9s %9s %9s %8s  %s%n", "count", "total s", "mean ms", "p50 ms",
+            "p99 ms", "max ms", "errors", "statement"));
+      for (Map.Entry<String, Stats> entry : sortedByTotalTime()) {
+         LatencyHistogram latency = entry.getValue().latency;
+         text.append(String.format("%8d %9.3f %9.3f %9.3f %9.3f %9.3f %8d  %s%n", latency.getCount(),
+               latency.getSum() / 1e9, latency.getMean() / 1e6, latency.getPercentile(0.50) / 1e6,
+               latency.getPercentile(0.99) / 1e6, latency.getMax() / 1e6, entry.getValue().errors.get(),
+               entry.getKey()));
+      }
+      text.append(String.format("pool wait: count %d, mean %.3f ms, p99 %.3f ms, max %.3f ms, timeouts %d%n",
+            this._poolWait.getCount(), this._poolWait.getMean() / 1e6, this._poolWait.getPercentile(0.99) / 1e6,
+            this._poolWait.getMax() / 1e6, this._poolErrors.get()));
+      text.append(String.format("pool connections: borrowed %d, idle %d%n", this._pool.getBorrowedCount(),
+            this._pool.getIdleCount()));
+      return text.toString();
+   }// end toText
+
+   /**
+    * @return the metrics in the Prometheus text exposition format
+    */
+   public String toPrometheus() {
+      StringBuilder text = new StringBuilder();
+      text.append("# TYPE cafe_query_duration_seconds summary\n");
+      for (Map.Entry<String, Stats> entry : sortedByTotalTime()) {
+         summary(text, "cafe_query_duration_seconds", "query=\"" + escape(entry.getKey()) + "\"",
+               entry.getValue().latency);
+      }
+      text.append("# TYPE cafe_query_rows_total counter\n");
+      for (Map.Entry<String, Stats> entry : sortedByTotalTime())
+         text.append("cafe_query_rows_total{query=\"").append(escape(entry.getKey())).append("\"} ")
+               .append(entry.getValue().rows.get()).append('\n');
+      text.append("# TYPE cafe_query_errors_total counter\n");
+      for (Map.Entry<String, Stats> entry : sortedByTotalTime())
+         text.append("cafe_query_errors_total{query=\"").append(escape(entry.getKey())).append("\"} ")
+               .append(entry.getValue().errors.get()).append('\n');
+      text.append("# TYPE cafe_pool_wait_seconds summary\n");
+      summary(text, "cafe_pool_wait_seconds", "", this._poolWait);
+      text.append("# TYPE cafe_pool_timeouts_total counter\n");
+      text.append("cafe_pool_timeouts_total ").append(this._poolErrors.get()).append('\n');
+      text.append("# TYPE cafe_pool_connections gauge\n");
+      text.append("cafe_pool_connections{state=\"borrowed\"} ").append(this._pool.getBorrowedCount()).append('\n');
+      text.append("cafe_pool_connections{state=\"idle\"} ").append(this._pool.getIdleCount()).append('\n');
+      return text.toString();
+   }// end toPrometheus
+
+   /**
+    * Starts the file dump and the HTTP endpoint, when configured.
+    *
+    * @throws java.io.IOException when the port could not be opened
+    */
+   public synchronized void start() throws IOException {
+      if (PORT > 0 && this._server == null) {
+         this._server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), PORT), 0);
+         this._server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+               boolean text = exchange.getRequestURI().getPath().endsWith(".txt");
+               byte[] body = (text ? toText() : toPrometheus()).getBytes("UTF-8");
+               exchange.getResponseHeaders().set("Content-Type",
+                     text ? "text/plain; charset=utf-8" : "text/plain; version=0.0.4; charset=utf-8");
+               exchange.sendResponseHeaders(200, body.length);
+               OutputStream out = exchange.getResponseBody();
+               try {
+                  out.write(body);
+               } finally {
+                  out.close();
+               }
+            }
+         });
+         this._server.start();
+      }
+      if (FILE != null && this._dumper == null && DUMP_INTERVAL_MS > 0) {
+         this._dumper = new Thread(new Runnable() {
+            public void run() {
+               dumpLoop();
+            }
+         }, "cafe-metrics-dumper");
+         this._dumper.setDaemon(true);
+         this._dumper.start();
+      }
+   }// end start
+
+   /**
+    * Stops the exports, writing the metrics file one last time.
+    */
+   public synchronized void stop() {
+      this._stopped = true;
+      if (this._server != null)
+         this._server.stop(0);
+      if (this._dumper != null)
+         this._dumper.interrupt();
+      if (FILE != null)
+         dump();
+   }// end stop
+
+   /* Rewrites the metrics file on the interval */
+   private void dumpLoop() {
+      while (!this._stopped) {
+         try {
+            Thread.sleep(DUMP_INTERVAL_MS);
+         } catch (InterruptedException e) {
+            return;
+         }
+         dump();
+      }
+   }// end dumpLoop
+
+   /* Writes the metrics file through a temporary file so readers never see half of it */
+   private void dump() {
+      File target = new File(FILE);
+      File temp = new File(FILE + ".tmp");
+      try {
+         OutputStream out = new FileOutputStream(temp);
+         try {
+            out.write((FORMAT.equals("prometheus") ? toPrometheus() : toText()).getBytes("UTF-8"));
+         } finally {
+            out.close();
+         }
+         if (!temp.renameTo(target)) {
+            target.delete();
+            temp.renameTo(target);
+         }
+      } catch (IOException e) {
+         System.err.println("Could not write query metrics: " + e.getMessage());
+      }
+   }// end dump
+
+   /* Returns the counters of a template, creating them up to the limit */
+   private Stats stats(String template) {
+      Stats stats = this._templates.get(template);
+      if (stats != null)
+         return stats;
+      if (this._templates.size() >= MAX_TEMPLATES)
+         template = OTHER;
+      stats = new Stats();
+      Stats existing = this._templates.putIfAbsent(template, stats);
+      return existing != null ? existing : stats;
+   }// end stats
+
+   private List<Map.Entry<String, Stats>> sortedByTotalTime() {
+      List<Map.Entry<String, Stats>> entries = new ArrayList<Map.Entry<String, Stats>>(this._templates.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, Stats>>() {
+         public int compare(Map.Entry<String, Stats> a, Map.Entry<String, Stats> b) {
+            long ta = a.getValue().latency.getSum();
+            long tb = b.getValue().latency.getSum();
+            return ta < tb ? 1 : ta > tb ? -1 : 0;
+         }
+      });
+      return entries;
+   }// end sortedByTotalTime
+
+   private static void summary(StringBuilder text, String name, String labels, LatencyHistogram latency) {
+      String prefix = labels.isEmpty() ? "" : labels + ",";
+      String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+      double[] quantiles = { 0.5, 0.9, 0.99 };
+      for (double q : quantiles)
+         text.append(name).append('{').append(prefix).append("quantile=\"").append(q).append("\"} ")
+               .append(latency.getPercentile(q) / 1e9).append('\n');
+      text.append(name).append("_sum").append(suffix).append(' ').append(latency.getSum() / 1e9).append('\n');
+      text.append(name).append("_count").append(suffix).append(' ').append(latency.getCount()).append('\n');
+   }// end summary
+
+   private static String escape(String value) {
+      return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", " ");
+   }// end escape
+
+}// end QueryMetrics
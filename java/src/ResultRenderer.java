@@ -0,0 +1,242 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Formats query results into a reusable character buffer and writes them to
+ * the terminal in one call per page instead of one call per column. Rows
+ * are handed over with begin, row and end.
+ *
+ * The format is chosen with the cafe.output.format system property (LINES,
+ * TABLE, CSV or JSON, default LINES: one value per line as the menus have
+ * always printed) and cafe.output.pageSize sets how many rows are written
+ * per flush (0, the default, writes the whole result at once).
+ *
+ * A renderer is not thread safe; use forStandardOut to get the one owned by
+ * the calling thread.
+ *
+ */
+public class ResultRenderer {
+
+   public enum Format {
+      LINES, TABLE, CSV, JSON
+   }
+
+   static final Format FORMAT = Format.valueOf(System.getProperty("cafe.output.format", "LINES").trim().toUpperCase());
+   static final int PAGE_SIZE = Integer.getInteger("cafe.output.pageSize", 0);
+
+   // one renderer, and so one buffer, per thread printing results
+   private static final ThreadLocal<ResultRenderer> RENDERERS = new ThreadLocal<ResultRenderer>() {
+      protected ResultRenderer initialValue() {
+         return new ResultRenderer(FORMAT, PAGE_SIZE);
+      }
+   };
+
+   private final Format _format;
+   private final int _pageSize;
+
+   // text waiting to be written, reused between results
+   private final StringBuilder _buffer = new StringBuilder(4096);
+
+   // rows of the current page, only kept for TABLE which needs column widths
+   private final List<String[]> _pageRows = new ArrayList<String[]>();
+
+   private PrintStream _out;
+   private String[] _columns;
+   private int _rowCount;
+   private int _rowsInPage;
+
+   /**
+    * Creates a renderer
+    *
+    * @param format   the output format
+    * @param pageSize rows written per flush, 0 to write the result at once
+    */
+   public ResultRenderer(Format format, int pageSize) {
+      this._format = format;
+      this._pageSize = pageSize;
+   }// end ResultRenderer
+
+   /**
+    * @return the renderer of the calling thread, writing to System.out
+    */
+   public static ResultRenderer forStandardOut() {
+      ResultRenderer renderer = RENDERERS.get();
+      renderer._out = System.out;
+      return renderer;
+   }// end forStandardOut
+
+   /**
+    * Starts a result.
+    *
+    * @param columns the column names
+    */
+   public void begin(String[] columns) {
+      this._columns = columns.clone();
+      this._buffer.setLength(0);
+      this._pageRows.clear();
+      this._rowCount = 0;
+      this._rowsInPage = 0;
+      if (this._format == Format.CSV) {
+         appendCsvRecord(this._columns);
+      } else if (this._format == Format.JSON) {
+         this._buffer.append('[');
+      }
+   }// end begin
+
+   /**
+    * Adds a row. The array is copied only when the format needs it later,
+    * so callers may reuse it between rows.
+    *
+    * @param values the column values, null for SQL NULL
+    */
+   public void row(String[] values) {
+      switch (this._format) {
+         case LINES:
+            for (String value : values)
+               this._buffer.append(value == null ? "" : value).append('\n');
+            break;
+         case TABLE:
+            this._pageRows.add(values.clone());
+            break;
+         case CSV:
+            appendCsvRecord(values);
+            break;
+         case JSON:
+            appendJsonObject(values);
+            break;
+      }
+      ++this._rowCount;
+      ++this._rowsInPage;
+      if (this._pageSize > 0 && this._rowsInPage >= this._pageSize)
+         flushPage();
+   }// end row
+
+   /**
+    * Finishes the result and writes whatever is still buffered.
+    *
+    * @return the number of rows rendered
+    */
+   public int end() {
+      if (this._format == Format.JSON)
+         this._buffer.append(this._rowCount == 0 ? "]" : "\n]").append('\n');
+      flushPage();
+      return this._rowCount;
+   }// end end
+
+   /* Writes the buffered page to the terminal in one call */
+   private void flushPage() {
+      if (this._format == Format.TABLE && (!this._pageRows.isEmpty() || this._rowCount == 0))
+         appendTable();
+      if (this._buffer.length() > 0) {
+         this._out.print(this._buffer);
+         this._out.flush();
+      }
+      this._buffer.setLength(0);
+      this._pageRows.clear();
+      this._rowsInPage = 0;
+   }// end flushPage
+
+   /* Lays out the rows of the page as an aligned table with a header */
+   private void appendTable() {
+      int[] widths = new int[this._columns.length];
+      for (int i = 0; i < widths.length; ++i)
+         widths[i] = this._columns[i].length();
+      for (String[] values : this._pageRows)
+         for (int i = 0; i < widths.length; ++i)
+            widths[i] = Math.max(widths[i], values[i] == null ? 0 : values[i].length());
+
+      appendTableRow(this._columns, widths);
+      for (int i = 0; i < widths.length; ++i) {
+         if (i > 0)
+            this._buffer.append("-+-");
+         for (int j = 0; j < widths[i]; ++j)
+            this._buffer.append('-');
+      }
+      this._buffer.append('\n');
+      for (String[] values : this._pageRows)
+         appendTableRow(values, widths);
+   }// end appendTable
+
+   private void appendTableRow(String[] values, int[] widths) {
+      for (int i = 0; i < widths.length; ++i) {
+         if (i > 0)
+            this._buffer.append(" | ");
+         String value = values[i] == null ? "" : values[i];
+         this._buffer.append(value);
+         for (int j = value.length(); j < widths[i]; ++j)
+            this._buffer.append(' ');
+      }
+      this._buffer.append('\n');
+   }// end appendTableRow
+
+   private void appendCsvRecord(String[] values) {
+      for (int i = 0; i < values.length; ++i) {
+         if (i > 0)
+            this._buffer.append(',');
+         String value = values[i];
+         if (value == null)
+            continue;
+         if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            this._buffer.append(value);
+         } else {
+            this._buffer.append('"');
+            for (int j = 0; j < value.length(); ++j) {
+               char c = value.charAt(j);
+               if (c == '"')
+                  this._buffer.append('"');
+               this._buffer.append(c);
+            }
+            this._buffer.append('"');
+         }
+      }
+      this._buffer.append('\n');
+   }// end appendCsvRecord
+
+   private void appendJsonObject(String[] values) {
+      this._buffer.append(this._rowCount == 0 ? "\n  {" : ",\n  {");
+      for (int i = 0; i < values.length; ++i) {
+         if (i > 0)
+            this._buffer.append(", ");
+         appendJsonString(this._columns[i]);
+         this._buffer.append(": ");
+         if (values[i] == null)
+            this._buffer.append("null");
+         else
+            appendJsonString(values[i]);
+      }
+      this._buffer.append('}');
+   }// end appendJsonObject
+
+   private void appendJsonString(String value) {
+      this._buffer.append('"');
+      for (int i = 0; i < value.length(); ++i) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"':
+               this._buffer.append("\\\"");
+               break;
+            case '\\':
+               this._buffer.append("\\\\");
+               break;
+            case '\n':
+               this._buffer.append("\\n");
+               break;
+            case '\r':
+               this._buffer.append("\\r");
+               break;
+            case '\t':
+               this._buffer.append("\\t");
+               break;
+            default:
+               if (c < 0x20) {
+                  this._buffer.append(String.format("\\u%04x", (int) c));
+               } else {
+                  this._buffer.append(c);
+               }
+         }
+      }
+      this._buffer.append('"');
+   }// end appendJsonString
+
+}// end ResultRenderer
@@ -0,0 +1,39 @@
+/**
+ * The kinds of user accounts, as stored in the Users.type column.
+ *
+ */
+public enum Role {
+
+   CUSTOMER("Customer"), EMPLOYEE("Employee"), MANAGER("Manager");
+
+   private final String _dbValue;
+
+   private Role(String dbValue) {
+      this._dbValue = dbValue;
+   }
+
+   /**
+    * @return the value stored in Users.type
+    */
+   public String getDbValue() {
+      return this._dbValue;
+   }// end getDbValue
+
+   /**
+    * Maps a Users.type value to a role, ignoring padding and case.
+    *
+    * @param value the stored type
+    * @return the role, or null if the value is not a known type
+    */
+   public static Role fromDbValue(String value) {
+      if (value == null)
+         return null;
+      String type = value.trim();
+      for (Role role : values()) {
+         if (role._dbValue.equalsIgnoreCase(type))
+            return role;
+      }
+      return null;
+   }// end fromDbValue
+
+}// end Role
@@ -0,0 +1,21 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback receiving the rows of a streamed query one at a time. The result
+ * set is positioned on the current row, so columns are read with the typed
+ * getters only when needed and nothing is buffered beyond one fetch.
+ *
+ */
+public interface RowHandler {
+
+   /**
+    * Handles the current row.
+    *
+    * @param rs the result set positioned on the row, must not be advanced
+    * @return true to keep streaming, false to stop after this row
+    * @throws java.sql.SQLException when reading a column failed
+    */
+   boolean handleRow(ResultSet rs) throws SQLException;
+
+}// end RowHandler
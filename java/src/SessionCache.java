@@ -0,0 +1,65 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps recently authenticated sessions by login so role checks do not
+ * query the Users table. Entries expire after cafe.session.ttlMs
+ * milliseconds and are dropped as soon as the user's profile changes.
+ *
+ */
+public class SessionCache {
+
+   static final long TTL_MS = Long.getLong("cafe.session.ttlMs", 15L * 60L * 1000L);
+
+   /* A cached session and when it stops being served */
+   private static class CachedSession {
+      final UserSession session;
+      final long expiresAt;
+
+      CachedSession(UserSession session, long expiresAt) {
+         this.session = session;
+         this.expiresAt = expiresAt;
+      }
+   }// end CachedSession
+
+   private final ConcurrentHashMap<String, CachedSession> _sessions = new ConcurrentHashMap<String, CachedSession>();
+
+   /**
+    * @param login the user login
+    * @return the cached session, or null if there is none or it expired
+    */
+   public UserSession get(String login) {
+      if (login == null)
+         return null;
+      CachedSession cached = this._sessions.get(login);
+      if (cached == null)
+         return null;
+      if (System.currentTimeMillis() >= cached.expiresAt) {
+         this._sessions.remove(login, cached);
+         return null;
+      }
+      return cached.session;
+   }// end get
+
+   /**
+    * Caches a session for the TTL.
+    *
+    * @param session the authenticated session
+    */
+   public void put(UserSession session) {
+      if (TTL_MS <= 0)
+         return;
+      this._sessions.put(session.getLogin(),
+            new CachedSession(session, System.currentTimeMillis() + TTL_MS));
+   }// end put
+
+   /**
+    * Drops the session of a user whose profile changed.
+    *
+    * @param login the user login
+    */
+   public void invalidate(String login) {
+      if (login != null)
+         this._sessions.remove(login);
+   }// end invalidate
+
+}// end SessionCache
@@ -0,0 +1,227 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Routes the console used by the Cafe menus to the terminal session served
+ * by the calling thread. The menus read from Cafe.in and write to
+ * System.out and System.err; once install has been called, each of these
+ * goes to the streams attached to the current thread, or to the real
+ * console for threads without a session.
+ *
+ */
+public class SessionConsole {
+
+   // streams of the session served by the current thread
+   private static final ThreadLocal<BufferedReader> INPUT = new ThreadLocal<BufferedReader>();
+   private static final ThreadLocal<PrintStream> OUTPUT = new ThreadLocal<PrintStream>();
+
+   /**
+    * Keyboard reader handed to the menus. Reads from the session of the
+    * calling thread, or from standard in.
+    */
+   static class Reader extends BufferedReader {
+
+      Reader() {
+         super(new InputStreamReader(System.in));
+      }
+
+      public String readLine() throws IOException {
+         BufferedReader session = INPUT.get();
+         // the prompt must reach the terminal before waiting for its answer
+         PrintStream output = OUTPUT.get();
+         if (output != null)
+            output.flush();
+         return session == null ? super.readLine() : session.readLine();
+      }
+
+      public int read() throws IOException {
+         BufferedReader session = INPUT.get();
+         return session == null ? super.read() : session.read();
+      }
+   }// end Reader
+
+   /*
+    * System.out and System.err while installed. Every call is handed to the
+    * stream of the calling thread without taking this stream's own lock, so
+    * a session stalled on a slow socket only blocks its own thread.
+    */
+   private static class Output extends PrintStream {
+      private final PrintStream _console;
+
+      Output(PrintStream console) {
+         super(console, true);
+         this._console = console;
+      }
+
+      private PrintStream target() {
+         PrintStream session = OUTPUT.get();
+         return session == null ? this._console : session;
+      }
+
+      public void write(int b) {
+         target().write(b);
+      }
+
+      public void write(byte[] b, int off, int len) {
+         target().write(b, off, len);
+      }
+
+      public void flush() {
+         target().flush();
+      }
+
+      public boolean checkError() {
+         return target().checkError();
+      }
+
+      public void print(boolean b) {
+         target().print(b);
+      }
+
+      public void print(char c) {
+         target().print(c);
+      }
+
+      public void print(int i) {
+         target().print(i);
+      }
+
+      public void print(long l) {
+         target().print(l);
+      }
+
+      public void print(float f) {
+         target().print(f);
+      }
+
+      public void print(double d) {
+         target().print(d);
+      }
+
+      public void print(char[] s) {
+         target().print(s);
+      }
+
+      public void print(String s) {
+         target().print(s);
+      }
+
+      public void print(Object obj) {
+         target().print(obj);
+      }
+
+      public void println() {
+         target().println();
+      }
+
+      public void println(boolean x) {
+         target().println(x);
+      }
+
+      public void println(char x) {
+         target().println(x);
+      }
+
+      public void println(int x) {
+         target().println(x);
+      }
+
+      public void println(long x) {
+         target().println(x);
+      }
+
+      public void println(float x) {
+         target().println(x);
+      }
+
+      public void println(double x) {
+         target().println(x);
+      }
+
+      public void println(char[] x) {
+         target().println(x);
+      }
+
+      public void println(String x) {
+         target().println(x);
+      }
+
+      public void println(Object x) {
+         target().println(x);
+      }
+
+      public PrintStream printf(String format, Object... args) {
+         target().printf(format, args);
+         return this;
+      }
+
+      public PrintStream printf(Locale l, String format, Object... args) {
+         target().printf(l, format, args);
+         return this;
+      }
+
+      public PrintStream format(String format, Object... args) {
+         target().format(format, args);
+         return this;
+      }
+
+      public PrintStream format(Locale l, String format, Object... args) {
+         target().format(l, format, args);
+         return this;
+      }
+
+      public PrintStream append(CharSequence csq) {
+         target().append(csq);
+         return this;
+      }
+
+      public PrintStream append(CharSequence csq, int start, int end) {
+         target().append(csq, start, end);
+         return this;
+      }
+
+      public PrintStream append(char c) {
+         target().append(c);
+         return this;
+      }
+   }// end Output
+
+   private static boolean _installed = false;
+
+   /**
+    * Replaces System.out and System.err with streams that follow the
+    * session of the calling thread. Safe to call more than once.
+    */
+   public static synchronized void install() {
+      if (_installed)
+         return;
+      System.setOut(new Output(System.out));
+      System.setErr(new Output(System.err));
+      _installed = true;
+   }// end install
+
+   /**
+    * Attaches a session to the calling thread.
+    *
+    * @param input  where the menus read keyboard input from
+    * @param output where the menus print to, both normal and error output
+    */
+   public static void attach(BufferedReader input, OutputStream output) {
+      INPUT.set(input);
+      // each session prints through its own stream and lock
+      OUTPUT.set(new PrintStream(output, true));
+   }// end attach
+
+   /**
+    * Detaches the session from the calling thread, restoring the console.
+    */
+   public static void detach() {
+      INPUT.remove();
+      OUTPUT.remove();
+   }// end detach
+
+}// end SessionConsole
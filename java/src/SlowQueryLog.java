@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logs statements that took longer than cafe.slowQuery.thresholdMs
+ * (default 200, negative to turn off) with their bind parameters.
+ *
+ * Entries go to cafe.slowQuery.file, rotated at cafe.slowQuery.maxBytes
+ * across cafe.slowQuery.files files. With cafe.slowQuery.explain=true the
+ * plan of a slow statement is captured with EXPLAIN (ANALYZE, BUFFERS) on a
+ * background thread and its own connection, at most once per template
+ * every cafe.slowQuery.explainIntervalMs. ANALYZE runs the statement, so
+ * the capture always runs in a transaction that is rolled back.
+ *
+ * Parameters of statements touching passwords are not written out.
+ *
+ */
+public class SlowQueryLog {
+
+   static final long THRESHOLD_MS = Long.getLong("cafe.slowQuery.thresholdMs", 200L);
+   static final String FILE = System.getProperty("cafe.slowQuery.file", "cafe-slow-queries.%g.log");
+   static final int MAX_BYTES = Integer.getInteger("cafe.slowQuery.maxBytes", 10 * 1024 * 1024);
+   static final int FILES = Integer.getInteger("cafe.slowQuery.files", 5);
+   static final boolean EXPLAIN = Boolean.getBoolean("cafe.slowQuery.explain");
+   static final long EXPLAIN_INTERVAL_MS = Long.getLong("cafe.slowQuery.explainIntervalMs", 60000L);
+   static final int MAX_PARAM_LENGTH = 200;
+
+   /* One line per entry, plan lines indented below it */
+   private static class EntryFormatter extends Formatter {
+      private final SimpleDateFormat _time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+      public synchronized String format(LogRecord record) {
+         return this._time.format(new Date(record.getMillis())) + " " + record.getMessage() + "\n";
+      }
+   }// end EntryFormatter
+
+   private final Cafe _esql;
+
+   private final Logger _logger = Logger.getLogger("cafe.slowquery");
+   private FileHandler _handler = null;
+
+   // captures plans one at a time; a full queue drops the capture
+   private final ThreadPoolExecutor _explainer = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+         new ArrayBlockingQueue<Runnable>(16), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "cafe-slow-query-explainer");
+               thread.setDaemon(true);
+               return thread;
+            }
+         }, new ThreadPoolExecutor.DiscardPolicy());
+
+   // when each template was last explained
+   private final Map<String, Long> _explained = new ConcurrentHashMap<String, Long>();
+
+   // connection used by the explainer thread only
+   private Connection _explainConnection = null;
+
+   /**
+    * Creates a log. The file is opened on the first slow statement.
+    *
+    * @param esql the database whose statements are logged
+    */
+   public SlowQueryLog(Cafe esql) {
+      this._esql = esql;
+      this._logger.setUseParentHandlers(false);
+   }// end SlowQueryLog
+
+   /**
+    * Logs the statement if it ran longer than the threshold.
+    *
+    * @param template   the statement template the metrics use
+    * @param sql        the SQL text as run
+    * @param params     the bound parameters, empty for plain SQL
+    * @param startNanos System.nanoTime() when the statement was issued
+    */
+   public void check(String template, final String sql, final Object[] params, long startNanos) {
+      if (THRESHOLD_MS < 0)
+         return;
+      long elapsedNanos = System.nanoTime() - startNanos;
+      if (elapsedNanos < THRESHOLD_MS * 1000000L)
+         return;
+      final boolean hidden = sql.toLowerCase().contains("password");
+      log(String.format("%.1f ms | %s | params %s", elapsedNanos / 1e6, oneLine(sql),
+            hidden ? "<hidden>" : describe(params)));
+      if (EXPLAIN && isExplainable(sql) && shouldExplain(template)) {
+         try {
+            this._explainer.execute(new Runnable() {
+               public void run() {
+                  explain(sql, params);
+               }
+            });
+         } catch (RejectedExecutionException e) {
+            // closed
+         }
+      }
+   }// end check
+
+   /**
+    * Stops the plan captures and closes the log file.
+    */
+   public void close() {
+      this._explainer.shutdownNow();
+      try {
+         // the connection belongs to the explainer thread until it is done
+         if (this._explainer.awaitTermination(1, TimeUnit.SECONDS) && this._explainConnection != null)
+            this._explainConnection.close();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (SQLException e) {
+         // ignored.
+      }
+      synchronized (this) {
+         if (this._handler != null) {
+            this._logger.removeHandler(this._handler);
+            this._handler.close();
+         }
+      }
+   }// end close
+
+   /* Writes one entry, opening the file on first use */
+   private synchronized void log(String entry) {
+      if (this._handler == null) {
+         try {
+            this._handler = new FileHandler(FILE, MAX_BYTES, Math.max(1, FILES), true);
+            this._handler.setFormatter(new EntryFormatter());
+            this._logger.addHandler(this._handler);
+         } catch (IOException e) {
+            System.err.println("Could not open the slow query log: " + e.getMessage());
+            return;
+         }
+      }
+      this._logger.log(Level.INFO, entry);
+   }// end log
+
+   /* True at most once per template and interval */
+   private boolean shouldExplain(String template) {
+      long now = System.currentTimeMillis();
+      Long last = this._explained.get(template);
+      if (last != null && now - last < EXPLAIN_INTERVAL_MS)
+         return false;
+      this._explained.put(template, now);
+      return true;
+   }// end shouldExplain
+
+   /* Runs EXPLAIN (ANALYZE, BUFFERS) and logs the plan, on the explainer thread */
+   private void explain(String sql, Object[] params) {
+      try {
+         if (this._explainConnection == null) {
+            this._explainConnection = this._esql.openDedicatedConnection();
+            this._explainConnection.setAutoCommit(false);
+         }
+         StringBuilder plan = new StringBuilder("plan of ").append(oneLine(sql));
+         PreparedStatement stmt = this._explainConnection.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql);
+         try {
+            for (int i = 0; i < params.length; ++i) {
+               if (params[i] == null)
+                  stmt.setNull(i + 1, Types.VARCHAR);
+               else
+                  stmt.setObject(i + 1, params[i]);
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next())
+               plan.append("\n    ").append(rs.getString(1));
+            rs.close();
+         } finally {
+            stmt.close();
+            // ANALYZE really ran the statement, never keep its writes
+            this._explainConnection.rollback();
+         }
+         log(plan.toString());
+      } catch (SQLException e) {
+         log("plan of " + oneLine(sql) + " could not be captured: " + e.getMessage());
+         try {
+            if (this._explainConnection != null)
+               this._explainConnection.close();
+         } catch (SQLException ignored) {
+            // ignored.
+         }
+         this._explainConnection = null;
+      }
+   }// end explain
+
+   private static boolean isExplainable(String sql) {
+      String verb = sql.trim().toUpperCase();
+      // running it again would take values from a sequence
+      if (verb.contains("NEXTVAL("))
+         return false;
+      return verb.startsWith("SELECT") || verb.startsWith("WITH") || verb.startsWith("INSERT")
+            || verb.startsWith("UPDATE") || verb.startsWith("DELETE");
+   }// end isExplainable
+
+   private static String describe(Object[] params) {
+      StringBuilder text = new StringBuilder("[");
+      for (int i = 0; i < params.length; ++i) {
+         if (i > 0)
+            text.append(", ");
+         String value = String.valueOf(params[i]);
+         if (value.length() > MAX_PARAM_LENGTH)
+            value = value.substring(0, MAX_PARAM_LENGTH) + "...";
+         text.append(params[i] instanceof String ? "'" + value + "'" : value);
+      }
+      return text.append("]").toString();
+   }// end describe
+
+   private static String oneLine(String sql) {
+      return sql.replaceAll("\\s+", " ").trim();
+   }// end oneLine
+
+}// end SlowQueryLog
@@ -0,0 +1,117 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * A least-recently-used cache of PreparedStatements for one physical
+ * connection, keyed by SQL text. Statements that are reused often enough are
+ * switched to server-side prepare so PostgreSQL parses and plans them once.
+ *
+ * The cache size and the number of uses before a statement is prepared on
+ * the server are read from the cafe.statementCache.size and
+ * cafe.statementCache.serverPrepareThreshold system properties.
+ *
+ * A connection is only used by the caller that borrowed it, so the cache is
+ * not synchronized.
+ *
+ */
+public class StatementCache {
+
+   static final int MAX_SIZE = Integer.getInteger("cafe.statementCache.size", 64);
+   static final int SERVER_PREPARE_THRESHOLD = Integer.getInteger("cafe.statementCache.serverPrepareThreshold", 5);
+
+   /* A cached statement and the number of times it was handed out */
+   private static class CachedStatement {
+      final PreparedStatement statement;
+      int uses = 0;
+
+      CachedStatement(PreparedStatement statement) {
+         this.statement = statement;
+      }
+   }// end CachedStatement
+
+   // connection the statements were prepared on
+   private final Connection _connection;
+
+   // statements in access order, the eldest is evicted first
+   private final LinkedHashMap<String, CachedStatement> _statements = new LinkedHashMap<String, CachedStatement>(
+         16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+         if (size() <= MAX_SIZE)
+            return false;
+         closeQuietly(eldest.getValue().statement);
+         return true;
+      }
+   };
+
+   /**
+    * Creates an empty cache for a connection
+    *
+    * @param connection the connection statements are prepared on
+    */
+   public StatementCache(Connection connection) {
+      this._connection = connection;
+   }// end StatementCache
+
+   /**
+    * Returns the cached statement for the SQL text, preparing it on first
+    * use. The caller must not close the returned statement.
+    *
+    * @param sql the SQL text with ? placeholders
+    * @return a prepared statement with its parameters cleared
+    * @throws java.sql.SQLException when the statement could not be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      CachedStatement entry = this._statements.get(sql);
+      if (entry == null) {
+         entry = new CachedStatement(this._connection.prepareStatement(sql));
+         this._statements.put(sql, entry);
+      } else {
+         entry.statement.clearParameters();
+      }
+
+      entry.uses++;
+      if (SERVER_PREPARE_THRESHOLD > 0 && entry.uses == SERVER_PREPARE_THRESHOLD
+            && entry.statement instanceof PGStatement) {
+         ((PGStatement) entry.statement).setUseServerPrepare(true);
+      }
+      return entry.statement;
+   }// end prepare
+
+   /**
+    * Drops a statement from the cache, e.g. after it failed and may be left
+    * in an unusable state.
+    *
+    * @param sql the SQL text the statement was prepared from
+    */
+   public void evict(String sql) {
+      CachedStatement entry = this._statements.remove(sql);
+      if (entry != null)
+         closeQuietly(entry.statement);
+   }// end evict
+
+   /**
+    * Closes every cached statement.
+    */
+   public void clear() {
+      Iterator<CachedStatement> it = this._statements.values().iterator();
+      while (it.hasNext()) {
+         closeQuietly(it.next().statement);
+         it.remove();
+      }
+   }// end clear
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      try {
+         stmt.close();
+      } catch (SQLException e) {
+         // ignored.
+      }
+   }// end closeQuietly
+
+}// end StatementCache
@@ -0,0 +1,266 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind buffer for ItemStatus status changes, enabled with
+ * -Dcafe.statusBuffer.enabled=true.
+ *
+ * Changes are kept in memory per (orderid, itemName), so an item moved
+ * from Hasn't started to Started to Finished between two flushes costs one
+ * row update. Pending changes are written in batches, one UPDATE per batch,
+ * once cafe.statusBuffer.maxPending items are pending or every
+ * cafe.statusBuffer.flushIntervalMs, and whatever is left is written by
+ * close, which Cafe.cleanup calls on shutdown.
+ *
+ * Each write still checks the status the item had before its first
+ * buffered change, so a change made directly in the database in the
+ * meantime wins and the buffered one is dropped.
+ *
+ */
+public class StatusWriteBuffer {
+
+   static final boolean ENABLED = Boolean.getBoolean("cafe.statusBuffer.enabled");
+   static final int MAX_PENDING = Integer.getInteger("cafe.statusBuffer.maxPending", 100);
+   static final long FLUSH_INTERVAL_MS = Long.getLong("cafe.statusBuffer.flushIntervalMs", 1000L);
+   static final int ROWS_PER_STATEMENT = 200;
+
+   // applies a batch given as parallel arrays, only to items still in their expected status
+   static final String WRITE_QUERY = "UPDATE ItemStatus s SET status = v.status, lastUpdated = v.updated "
+         + "FROM unnest(CAST(? AS integer[]), CAST(? AS text[]), CAST(? AS text[]), CAST(? AS text[]), "
+         + "CAST(? AS timestamp[])) AS v(orderid, itemName, expected, status, updated) "
+         + "WHERE s.orderid = v.orderid AND s.itemName = v.itemName AND s.status = v.expected";
+
+   /* The latest buffered change of one item */
+   private static class Transition {
+      final int orderid;
+      final String itemName;
+      final String expected;
+      final String status;
+      final Timestamp updated;
+
+      Transition(int orderid, String itemName, String expected, String status, Timestamp updated) {
+         this.orderid = orderid;
+         this.itemName = itemName;
+         this.expected = expected;
+         this.status = status;
+         this.updated = updated;
+      }
+   }// end Transition
+
+   private final Cafe _esql;
+
+   // guards both maps, and wakes the flusher when the buffer fills up
+   private final Object _lock = new Object();
+
+   // changes not yet handed to a flush, by item key
+   private Map<String, Transition> _pending = new LinkedHashMap<String, Transition>();
+
+   // changes being written by the running flush
+   private Map<String, Transition> _inFlight = Collections.emptyMap();
+
+   // only one flush writes at a time
+   private final Object _flushLock = new Object();
+
+   // background thread flushing on the thresholds
+   private Thread _flusher = null;
+
+   private volatile boolean _stopped = false;
+
+   /**
+    * Creates an empty buffer. Call start to flush in the background.
+    *
+    * @param esql the database holding ItemStatus
+    */
+   public StatusWriteBuffer(Cafe esql) {
+      this._esql = esql;
+   }// end StatusWriteBuffer
+
+   /**
+    * Starts the background flush thread.
+    */
+   public synchronized void start() {
+      if (this._flusher != null)
+         return;
+      this._flusher = new Thread(new Runnable() {
+         public void run() {
+            flushLoop();
+         }
+      }, "cafe-status-flusher");
+      this._flusher.setDaemon(true);
+      this._flusher.start();
+   }// end start
+
+   /**
+    * Buffers a status change of one item.
+    *
+    * @param orderid  the order of the item
+    * @param itemName the ordered item
+    * @param from     the status the item is believed to have
+    * @param to       the new status
+    * @return false if the item already has a different buffered status
+    */
+   public boolean record(int orderid, String itemName, String from, String to) {
+      String key = key(orderid, itemName);
+      synchronized (this._lock) {
+         Transition latest = this._pending.get(key);
+         if (latest == null)
+            latest = this._inFlight.get(key);
+         if (latest != null && !latest.status.equals(from))
+            return false;
+         // a change that is only in flight is written before this one
+         Transition pending = this._pending.get(key);
+         String expected = pending != null ? pending.expected : latest != null ? latest.status : from;
+         this._pending.put(key, new Transition(orderid, itemName, expected, to,
+               new Timestamp(System.currentTimeMillis())));
+         if (this._pending.size() >= MAX_PENDING)
+            this._lock.notifyAll();
+         return true;
+      }
+   }// end record
+
+   /**
+    * @param orderid  the order of the item
+    * @param itemName the ordered item
+    * @return the buffered status of the item, or null if it has none
+    */
+   public String pendingStatus(int orderid, String itemName) {
+      String key = key(orderid, itemName);
+      synchronized (this._lock) {
+         Transition latest = this._pending.get(key);
+         if (latest == null)
+            latest = this._inFlight.get(key);
+         return latest == null ? null : latest.status;
+      }
+   }// end pendingStatus
+
+   /**
+    * @return true if no change is waiting to be written
+    */
+   public boolean isEmpty() {
+      synchronized (this._lock) {
+         return this._pending.isEmpty() && this._inFlight.isEmpty();
+      }
+   }// end isEmpty
+
+   /**
+    * Writes every pending change now. Changes that could not be written are
+    * kept for the next flush.
+    *
+    * @return the number of items updated
+    * @throws java.sql.SQLException when a batch failed
+    */
+   public int flush() throws SQLException {
+      synchronized (this._flushLock) {
+         List<Transition> batch;
+         synchronized (this._lock) {
+            if (this._pending.isEmpty())
+               return 0;
+            this._inFlight = this._pending;
+            this._pending = new LinkedHashMap<String, Transition>();
+            batch = new ArrayList<Transition>(this._inFlight.values());
+         }
+         try {
+            int updated = 0;
+            for (int from = 0; from < batch.size(); from += ROWS_PER_STATEMENT)
+               updated += write(batch.subList(from, Math.min(batch.size(), from + ROWS_PER_STATEMENT)));
+            return updated;
+         } catch (SQLException e) {
+            requeue(batch);
+            throw e;
+         } finally {
+            synchronized (this._lock) {
+               this._inFlight = Collections.emptyMap();
+            }
+         }
+      }
+   }// end flush
+
+   /**
+    * Stops the background thread and writes whatever is still pending.
+    */
+   public void close() {
+      synchronized (this) {
+         this._stopped = true;
+         if (this._flusher != null)
+            this._flusher.interrupt();
+      }
+      try {
+         if (this._flusher != null)
+            this._flusher.join(FLUSH_INTERVAL_MS);
+         flush();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (SQLException e) {
+         System.err.println("Could not write buffered item statuses: " + e.getMessage());
+      }
+   }// end close
+
+   /*
+    * Writes one batch with a single statement, checking each expected
+    * status. The batch is bound as arrays so every batch size shares one
+    * statement text.
+    */
+   private int write(List<Transition> batch) throws SQLException {
+      List<Integer> orderids = new ArrayList<Integer>(batch.size());
+      List<String> itemNames = new ArrayList<String>(batch.size());
+      List<String> expected = new ArrayList<String>(batch.size());
+      List<String> statuses = new ArrayList<String>(batch.size());
+      List<String> updated = new ArrayList<String>(batch.size());
+      for (Transition transition : batch) {
+         orderids.add(transition.orderid);
+         itemNames.add(transition.itemName);
+         expected.add(transition.expected);
+         statuses.add(transition.status);
+         updated.add(transition.updated.toString());
+      }
+      return this._esql.executeUpdate(WRITE_QUERY, Columns.toArray(orderids), Columns.toArray(itemNames),
+            Columns.toArray(expected), Columns.toArray(statuses), Columns.toArray(updated));
+   }// end write
+
+   /* Puts a failed batch back in front of the changes buffered since */
+   private void requeue(List<Transition> batch) {
+      synchronized (this._lock) {
+         Map<String, Transition> merged = new LinkedHashMap<String, Transition>();
+         for (Transition transition : batch)
+            merged.put(key(transition.orderid, transition.itemName), transition);
+         for (Map.Entry<String, Transition> newer : this._pending.entrySet()) {
+            Transition older = merged.get(newer.getKey());
+            Transition transition = newer.getValue();
+            if (older != null)
+               transition = new Transition(transition.orderid, transition.itemName, older.expected,
+                     transition.status, transition.updated);
+            merged.put(newer.getKey(), transition);
+         }
+         this._pending = merged;
+      }
+   }// end requeue
+
+   /* Flushes on the interval, or as soon as the buffer fills up */
+   private void flushLoop() {
+      while (!this._stopped) {
+         try {
+            synchronized (this._lock) {
+               if (this._pending.size() < MAX_PENDING)
+                  this._lock.wait(FLUSH_INTERVAL_MS);
+            }
+         } catch (InterruptedException e) {
+            return;
+         }
+         try {
+            flush();
+         } catch (SQLException e) {
+            // kept pending, retried on the next tick
+         }
+      }
+   }// end flushLoop
+
+   private static String key(int orderid, String itemName) {
+      return orderid + ";" + itemName;
+   }// end key
+
+}// end StatusWriteBuffer
@@ -0,0 +1,21 @@
+import java.sql.SQLException;
+
+/**
+ * Work run by Cafe.executeInTransaction on one borrowed connection. Every
+ * statement issued on the connection belongs to the same transaction, which
+ * is committed when run returns and rolled back when it throws.
+ *
+ * @param <T> the result of the work
+ */
+public interface TransactionCallback<T> {
+
+   /**
+    * Runs the statements of the transaction.
+    *
+    * @param conn the borrowed connection, with auto-commit off
+    * @return the result handed back to the caller
+    * @throws java.sql.SQLException to roll the transaction back
+    */
+   T run(PooledConnection conn) throws SQLException;
+
+}// end TransactionCallback
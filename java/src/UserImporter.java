@@ -0,0 +1,333 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads users in bulk from a file in the users.csv layout
+ * (login;phoneNum;password;favItems;type) without needing the file on the
+ * database host.
+ *
+ * The file is streamed and the rows are sent as multi-row INSERTs of
+ * cafe.import.rowsPerStatement users, committed every cafe.import.chunkSize
+ * users so a bad row only rolls back its own chunk. Phone numbers are
+ * normalized with UserService.formatPhoneNumber, and rows whose login or
+ * phone number is already taken, in the database or earlier in the file,
+ * are skipped.
+ * Favorite items are resolved against the menu and written to UserFavorites
+ * with the user; the deprecated Users.favItems column is left empty.
+ *
+ * Passwords are hashed before their chunk is sent, so no imported row holds
+ * a plaintext password. The import hashes on its own cafe.import.hashThreads
+ * threads, leaving the login hashing pool alone, and at the lower
+ * cafe.import.iterations cost; UserService.authenticate raises the hash to
+ * the full cost on the user's first login. The report gives the hashing and
+ * the insert throughput separately.
+ *
+ */
+public class UserImporter {
+
+   static final int CHUNK_SIZE = Integer.getInteger("cafe.import.chunkSize", 10000);
+   static final int ROWS_PER_STATEMENT = Integer.getInteger("cafe.import.rowsPerStatement", 500);
+   static final int HASH_ITERATIONS = Integer.getInteger("cafe.import.iterations", 1000);
+   static final int HASH_THREADS = Integer.getInteger("cafe.import.hashThreads",
+         Runtime.getRuntime().availableProcessors());
+
+   static final String USER_COLUMNS = "INSERT INTO Users (login, phoneNum, password, type) VALUES ";
+   static final String FAVORITE_COLUMNS = "INSERT INTO UserFavorites (login, itemName) VALUES ";
+
+   /* One valid row of the file */
+   private static class UserRow {
+      final String login;
+      final String phone;
+      final String password;
+      final String type;
+      final List<String> favorites;
+
+      UserRow(String login, String phone, String password, String type, List<String> favorites) {
+         this.login = login;
+         this.phone = phone;
+         this.password = password;
+         this.type = type;
+         this.favorites = favorites;
+      }
+   }// end UserRow
+
+   /**
+    * Counts of one import.
+    */
+   public static class Report {
+      int read;
+      int imported;
+      int duplicates;
+      int invalid;
+      long elapsedMs;
+      int hashed;
+      long hashMs;
+      long insertMs;
+
+      public int getRead() {
+         return this.read;
+      }
+
+      public int getImported() {
+         return this.imported;
+      }
+
+      public int getDuplicates() {
+         return this.duplicates;
+      }
+
+      public int getInvalid() {
+         return this.invalid;
+      }
+
+      public long getElapsedMs() {
+         return this.elapsedMs;
+      }
+
+      public long getHashMs() {
+         return this.hashMs;
+      }
+
+      public long getInsertMs() {
+         return this.insertMs;
+      }
+
+      public String toString() {
+         double seconds = Math.max(1, this.elapsedMs) / 1000.0;
+         return String.format("read %d, imported %d, duplicates %d, invalid %d in %.1f s (%.0f users/s); "
+               + "hashing %.0f passwords/s, inserting %.0f users/s", this.read, this.imported, this.duplicates,
+               this.invalid, seconds, this.imported / seconds, this.hashed * 1000.0 / Math.max(1, this.hashMs),
+               this.imported * 1000.0 / Math.max(1, this.insertMs));
+      }
+   }// end Report
+
+   private final Cafe _esql;
+
+   /**
+    * Creates an importer
+    *
+    * @param esql the database to load users into
+    */
+   public UserImporter(Cafe esql) {
+      this._esql = esql;
+   }// end UserImporter
+
+   /**
+    * Imports every user of the file.
+    *
+    * @param path the file to read, in the users.csv layout
+    * @return the counts of the import
+    * @throws java.io.IOException   when the file could not be read
+    * @throws java.sql.SQLException when a chunk failed, earlier chunks stay
+    *                               committed
+    */
+   public Report importFile(String path) throws IOException, SQLException {
+      long start = System.currentTimeMillis();
+      final Set<String> logins = new HashSet<String>();
+      final Set<String> phones = new HashSet<String>();
+      this._esql.executeQueryAndStream("SELECT login, phoneNum FROM Users", 10000, new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            logins.add(Columns.text(rs, 1));
+            String phone = Columns.text(rs, 2);
+            if (phone != null)
+               phones.add(phone);
+            return true;
+         }
+      });
+      Map<String, String> menu = new HashMap<String, String>();
+      for (MenuItem item : this._esql.getMenuService().getItems())
+         menu.put(item.getItemName().toLowerCase(), item.getItemName());
+
+      Report report = new Report();
+      List<UserRow> chunk = new ArrayList<UserRow>(Math.max(1, CHUNK_SIZE));
+      ExecutorService hashers = Executors.newFixedThreadPool(Math.max(1, HASH_THREADS), new ThreadFactory() {
+         public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "cafe-import-hasher");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty())
+               continue;
+            ++report.read;
+            UserRow row = parse(line, menu);
+            if (row == null) {
+               ++report.invalid;
+               continue;
+            }
+            if (logins.contains(row.login) || (row.phone != null && phones.contains(row.phone))) {
+               ++report.duplicates;
+               continue;
+            }
+            logins.add(row.login);
+            if (row.phone != null)
+               phones.add(row.phone);
+            chunk.add(row);
+            if (chunk.size() >= CHUNK_SIZE) {
+               insert(chunk, hashers, report);
+               chunk.clear();
+            }
+         }
+         if (!chunk.isEmpty())
+            insert(chunk, hashers, report);
+      } finally {
+         hashers.shutdownNow();
+         reader.close();
+         report.elapsedMs = System.currentTimeMillis() - start;
+      }
+      return report;
+   }// end importFile
+
+   /* Splits and checks one line, returning null if it cannot be imported */
+   private static UserRow parse(String line, Map<String, String> menu) {
+      String[] fields = line.split(";", -1);
+      if (fields.length != 5)
+         return null;
+      String login = fields[0].trim();
+      String password = fields[2];
+      Role role = Role.fromDbValue(fields[4]);
+      if (login.isEmpty() || login.length() > 50 || password.isEmpty() || role == null)
+         return null;
+
+      String phone = null;
+      String digits = fields[1].replaceAll("[^0-9]", "");
+      if (digits.length() == 11 && digits.charAt(0) == '1')
+         digits = digits.substring(1);
+      if (digits.length() == 10)
+         phone = UserService.formatPhoneNumber(digits);
+      else if (!digits.isEmpty())
+         return null;
+
+      String favItems = Columns.trim(fields[3]);
+      List<String> favorites = new ArrayList<String>();
+      if (favItems != null && !favItems.isEmpty()) {
+         for (String name : favItems.split(",")) {
+            String itemName = menu.get(name.trim().toLowerCase());
+            if (itemName != null && !favorites.contains(itemName))
+               favorites.add(itemName);
+         }
+      }
+      return new UserRow(login, phone, password, role.getDbValue(), favorites);
+   }// end parse
+
+   /*
+    * Hashes the passwords of one chunk, then inserts its users and their
+    * favorites as a single transaction
+    */
+   private void insert(final List<UserRow> chunk, ExecutorService hashers, Report report) throws SQLException {
+      long start = System.currentTimeMillis();
+      final List<String> hashes = hash(chunk, hashers);
+      long hashed = System.currentTimeMillis();
+      report.hashed += chunk.size();
+      report.hashMs += hashed - start;
+      report.imported += insertRows(chunk, hashes);
+      report.insertMs += System.currentTimeMillis() - hashed;
+   }// end insert
+
+   /* Hashes the password of every row at the import cost, on the import threads */
+   private static List<String> hash(List<UserRow> chunk, ExecutorService hashers) throws SQLException {
+      List<Callable<String>> tasks = new ArrayList<Callable<String>>(chunk.size());
+      for (final UserRow row : chunk) {
+         tasks.add(new Callable<String>() {
+            public String call() {
+               return PasswordHasher.hash(row.password, HASH_ITERATIONS);
+            }
+         });
+      }
+      List<String> hashes = new ArrayList<String>(chunk.size());
+      try {
+         for (Future<String> hash : hashers.invokeAll(tasks))
+            hashes.add(hash.get());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted while hashing passwords");
+      } catch (ExecutionException e) {
+         throw new SQLException("Password hashing failed: " + e.getCause().getMessage());
+      }
+      return hashes;
+   }// end hash
+
+   /* Inserts the users of one chunk with their hashed passwords, and their favorites */
+   private int insertRows(final List<UserRow> chunk, final List<String> hashes) throws SQLException {
+      return this._esql.executeInTransaction(new TransactionCallback<Integer>() {
+         public Integer run(PooledConnection conn) throws SQLException {
+            int inserted = 0;
+            List<String[]> favorites = new ArrayList<String[]>();
+            for (int from = 0; from < chunk.size(); from += ROWS_PER_STATEMENT) {
+               List<UserRow> rows = chunk.subList(from, Math.min(chunk.size(), from + ROWS_PER_STATEMENT));
+               List<Object> values = new ArrayList<Object>(rows.size() * 4);
+               for (int i = 0; i < rows.size(); ++i) {
+                  UserRow row = rows.get(i);
+                  values.add(row.login);
+                  values.add(row.phone);
+                  values.add(hashes.get(from + i));
+                  values.add(row.type);
+                  for (String itemName : row.favorites)
+                     favorites.add(new String[] { row.login, itemName });
+               }
+               inserted += insertValues(conn, USER_COLUMNS, 4, values);
+            }
+            for (int from = 0; from < favorites.size(); from += ROWS_PER_STATEMENT) {
+               List<Object> values = new ArrayList<Object>();
+               for (String[] favorite : favorites.subList(from,
+                     Math.min(favorites.size(), from + ROWS_PER_STATEMENT))) {
+                  values.add(favorite[0]);
+                  values.add(favorite[1]);
+               }
+               insertValues(conn, FAVORITE_COLUMNS, 2, values);
+            }
+            return inserted;
+         }
+      });
+   }// end insertRows
+
+   /* Runs one INSERT with a VALUES tuple per group of width values */
+   private static int insertValues(PooledConnection conn, String insert, int width, List<Object> values)
+         throws SQLException {
+      StringBuilder sql = new StringBuilder(insert);
+      StringBuilder tuple = new StringBuilder("(?");
+      for (int i = 1; i < width; ++i)
+         tuple.append(", ?");
+      tuple.append(")");
+      for (int i = 0; i < values.size(); i += width) {
+         if (i > 0)
+            sql.append(", ");
+         sql.append(tuple);
+      }
+      PreparedStatement stmt = conn.getConnection().prepareStatement(sql.toString());
+      try {
+         for (int i = 0; i < values.size(); ++i) {
+            if (values.get(i) == null)
+               stmt.setNull(i + 1, Types.VARCHAR);
+            else
+               stmt.setString(i + 1, (String) values.get(i));
+         }
+         return stmt.executeUpdate();
+      } finally {
+         stmt.close();
+      }
+   }// end insertValues
+
+}// end UserImporter
@@ -0,0 +1,248 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accounts, logins and favorite items, without any console input or
+ * output, so it can be called from any number of threads at once.
+ *
+ * Writes that must not clash with another user (a taken login or phone
+ * number) check for it in the same statement and report false instead of
+ * failing. Every change to a user drops their cached session.
+ *
+ */
+public class UserService {
+
+   // favorite items of the user u as one comma separated column.
+   static final String FAV_ITEMS_COLUMN = "(SELECT string_agg(f.itemName, ',' ORDER BY f.itemName) "
+         + "FROM UserFavorites f WHERE f.login = u.login)";
+
+   // a user's role, favorites and stored password hash, read at login.
+   static final String LOGIN_QUERY = "SELECT login, type, " + FAV_ITEMS_COLUMN
+         + ", password FROM USERS u WHERE login = ?";
+
+   // the users who favorite an item.
+   static final String USERS_FAVORITING_QUERY = "SELECT login FROM UserFavorites WHERE itemName = ? ORDER BY login";
+
+   private final Cafe _esql;
+
+   /**
+    * Creates the service
+    *
+    * @param esql the database holding the users
+    */
+   public UserService(Cafe esql) {
+      this._esql = esql;
+   }// end UserService
+
+   /**
+    * Checks a login and password. Passwords still stored in plaintext are
+    * replaced by a hash on their first successful login. The session is
+    * cached for later role checks.
+    *
+    * @param login    the user login
+    * @param password the password as entered
+    * @return the session, or null if the credentials do not match
+    * @throws java.sql.SQLException when the user could not be read
+    */
+   public UserSession authenticate(String login, String password) throws SQLException {
+      List<List<String>> result = this._esql.executeQueryAndReturnResult(LOGIN_QUERY, login);
+      if (result.isEmpty())
+         return null;
+      String stored = result.get(0).get(3);
+      PasswordHasher passwords = this._esql.getPasswords();
+      if (!passwords.verify(password, stored))
+         return null;
+      if (passwords.needsRehash(stored)) {
+         String upgrade = "UPDATE users SET password = ? WHERE login = ? AND password = ?";
+         this._esql.executeUpdate(upgrade, passwords.hash(password), login, stored);
+      }
+      UserSession session = toSession(result.get(0));
+      this._esql.getSessions().put(session);
+      return session;
+   }// end authenticate
+
+   /**
+    * Creates a customer account.
+    *
+    * @param login    the new login
+    * @param password the password, stored as a hash
+    * @param phone    the phone number as formatted by formatPhoneNumber
+    * @return false if the login or phone number is already taken
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public boolean createUser(String login, String password, String phone) throws SQLException {
+      String query = "INSERT INTO USERS (phoneNum, login, password, type) SELECT ?, ?, ?, ? "
+            + "WHERE NOT EXISTS (SELECT 1 FROM USERS WHERE login = ? OR phoneNum = ?)";
+      return this._esql.executeUpdate(query, phone, login, this._esql.getPasswords().hash(password),
+            Role.CUSTOMER.getDbValue(), login, phone) > 0;
+   }// end createUser
+
+   /**
+    * @param login a user login
+    * @return true if a user has the login
+    * @throws java.sql.SQLException when the query failed
+    */
+   public boolean loginExists(String login) throws SQLException {
+      return this._esql.executeExists("SELECT 1 FROM USERS WHERE login = ?", login);
+   }// end loginExists
+
+   /**
+    * @param phone a phone number as formatted by formatPhoneNumber
+    * @return true if a user has the phone number
+    * @throws java.sql.SQLException when the query failed
+    */
+   public boolean phoneNumberExists(String phone) throws SQLException {
+      return this._esql.executeExists("SELECT 1 FROM USERS WHERE phoneNum = ?", phone);
+   }// end phoneNumberExists
+
+   /**
+    * @param login a user login
+    * @return the user's role, from the session cache when the user logged in
+    *         recently, or null if there is no such user
+    * @throws java.sql.SQLException when the user could not be read
+    */
+   public Role getRole(String login) throws SQLException {
+      if (login == null)
+         return null;
+      UserSession session = this._esql.getSessions().get(login);
+      if (session == null) {
+         String query = "SELECT login, type, " + FAV_ITEMS_COLUMN + " FROM USERS u WHERE login = ?";
+         List<List<String>> result = this._esql.executeQueryAndReturnResult(query, login);
+         if (result.isEmpty())
+            return null;
+         session = toSession(result.get(0));
+         this._esql.getSessions().put(session);
+      }
+      return session.getRole();
+   }// end getRole
+
+   /**
+    * @param login    the current login
+    * @param newLogin the new login
+    * @return false if there is no such user or the new login is taken
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateLogin(String login, String newLogin) throws SQLException {
+      String query = "UPDATE users SET login = ? WHERE login = ? "
+            + "AND NOT EXISTS (SELECT 1 FROM users WHERE login = ?)";
+      return changed(login, this._esql.executeUpdate(query, newLogin, login, newLogin));
+   }// end updateLogin
+
+   /**
+    * @param login    the user login
+    * @param password the new password, stored as a hash
+    * @return false if there is no such user
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updatePassword(String login, String password) throws SQLException {
+      String query = "UPDATE users SET password = ? WHERE login = ?";
+      return changed(login, this._esql.executeUpdate(query, this._esql.getPasswords().hash(password), login));
+   }// end updatePassword
+
+   /**
+    * @param login the user login
+    * @param phone the new phone number as formatted by formatPhoneNumber
+    * @return false if there is no such user or another user has the number
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updatePhoneNumber(String login, String phone) throws SQLException {
+      String query = "UPDATE users SET phoneNum = ? WHERE login = ? "
+            + "AND NOT EXISTS (SELECT 1 FROM users WHERE phoneNum = ? AND login <> ?)";
+      return changed(login, this._esql.executeUpdate(query, phone, login, phone, login));
+   }// end updatePhoneNumber
+
+   /**
+    * @param login the user login
+    * @param role  the new role
+    * @return false if there is no such user
+    * @throws java.sql.SQLException when the update failed
+    */
+   public boolean updateRole(String login, Role role) throws SQLException {
+      String query = "UPDATE users SET type = ? WHERE login = ?";
+      return changed(login, this._esql.executeUpdate(query, role.getDbValue(), login));
+   }// end updateRole
+
+   /**
+    * @param login the user login
+    * @return the user's favorite item names, by name
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<String> getFavorites(String login) throws SQLException {
+      String query = "SELECT itemName FROM UserFavorites WHERE login = ? ORDER BY itemName";
+      return firstColumn(this._esql.executeQueryAndReturnResult(query, login));
+   }// end getFavorites
+
+   /**
+    * @param login    the user login
+    * @param itemName the menu item
+    * @return false if the item already was a favorite
+    * @throws java.sql.SQLException when the insert failed
+    */
+   public boolean addFavorite(String login, String itemName) throws SQLException {
+      String query = "INSERT INTO UserFavorites (login, itemName) SELECT ?, ? WHERE NOT EXISTS "
+            + "(SELECT 1 FROM UserFavorites WHERE login = ? AND itemName = ?)";
+      return changed(login, this._esql.executeUpdate(query, login, itemName, login, itemName));
+   }// end addFavorite
+
+   /**
+    * @param login    the user login
+    * @param itemName the menu item
+    * @return false if the item was not a favorite
+    * @throws java.sql.SQLException when the delete failed
+    */
+   public boolean removeFavorite(String login, String itemName) throws SQLException {
+      String query = "DELETE FROM UserFavorites WHERE login = ? AND itemName = ?";
+      return changed(login, this._esql.executeUpdate(query, login, itemName));
+   }// end removeFavorite
+
+   /**
+    * @param itemName a menu item
+    * @return the logins of the users who favorite the item, for promotions
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<String> usersFavoriting(String itemName) throws SQLException {
+      return firstColumn(this._esql.executeQueryAndReturnResult(USERS_FAVORITING_QUERY, itemName));
+   }// end usersFavoriting
+
+   /**
+    * @param limit the number of items to return
+    * @return the most favorited items as records of item name and number of
+    *         users
+    * @throws java.sql.SQLException when the query failed
+    */
+   public List<List<String>> topFavoritedItems(int limit) throws SQLException {
+      String query = "SELECT itemName, COUNT(*) AS users FROM UserFavorites GROUP BY itemName "
+            + "ORDER BY users DESC, itemName LIMIT ?";
+      return this._esql.executeQueryAndReturnResult(query, limit);
+   }// end topFavoritedItems
+
+   /**
+    * @param digits a phone number of 10 digits
+    * @return the number in the stored +1(888)888-8888 format
+    */
+   public static String formatPhoneNumber(String digits) {
+      return "+1(" + digits.substring(0, 3) + ")" + digits.substring(3, 6) + "-" + digits.substring(6);
+   }// end formatPhoneNumber
+
+   /* Drops the cached session of a user whose row changed */
+   private boolean changed(String login, int rows) {
+      if (rows == 0)
+         return false;
+      this._esql.getSessions().invalidate(login);
+      return true;
+   }// end changed
+
+   /* Builds a session from a login, type, favItems record */
+   private static UserSession toSession(List<String> record) {
+      return new UserSession(record.get(0), Role.fromDbValue(record.get(1)), Columns.textOrEmpty(record.get(2)));
+   }// end toSession
+
+   private static List<String> firstColumn(List<List<String>> records) {
+      List<String> values = new ArrayList<String>(records.size());
+      for (List<String> record : records)
+         values.add(record.get(0));
+      return values;
+   }// end firstColumn
+
+}// end UserService
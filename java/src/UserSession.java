@@ -0,0 +1,45 @@
+/**
+ * An authenticated user: the login, the role deciding which menus are
+ * shown, and the favorite items. Sessions are immutable; a changed profile
+ * produces a new session on the next lookup.
+ *
+ */
+public class UserSession {
+
+   private final String _login;
+   private final Role _role;
+   private final String _favItems;
+
+   /**
+    * Creates a session
+    *
+    * @param login    the user login
+    * @param role     the user role
+    * @param favItems the comma separated favorite items, may be empty
+    */
+   public UserSession(String login, Role role, String favItems) {
+      this._login = login;
+      this._role = role;
+      this._favItems = favItems;
+   }// end UserSession
+
+   public String getLogin() {
+      return this._login;
+   }
+
+   public Role getRole() {
+      return this._role;
+   }
+
+   public String getFavItems() {
+      return this._favItems;
+   }
+
+   /**
+    * @return true for employees and managers
+    */
+   public boolean isStaff() {
+      return this._role == Role.EMPLOYEE || this._role == Role.MANAGER;
+   }// end isStaff
+
+}// end UserSession
@@ -0,0 +1,209 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Checks how ConnectionPool treats connections given back after an error,
+ * against an in-memory driver that mimics PostgreSQL: after a failed
+ * statement inside a transaction every further statement fails until the
+ * transaction is rolled back.
+ *
+ * Run with scripts/test.sh; exits with status 1 when a check fails.
+ *
+ */
+public class ConnectionPoolTest {
+
+   static final String URL = "jdbc:cafetest:pool";
+
+   /* One fake physical connection */
+   static class FakeConnection implements InvocationHandler {
+      boolean autoCommit = true;
+      boolean aborted = false;
+      boolean closed = false;
+      boolean broken = false;
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+         String name = method.getName();
+         if (name.equals("getAutoCommit"))
+            return this.autoCommit;
+         if (name.equals("setAutoCommit")) {
+            this.autoCommit = (Boolean) args[0];
+            return null;
+         }
+         if (name.equals("rollback")) {
+            this.aborted = false;
+            return null;
+         }
+         if (name.equals("commit"))
+            return null;
+         if (name.equals("isClosed"))
+            return this.closed;
+         if (name.equals("close")) {
+            this.closed = true;
+            return null;
+         }
+         if (name.equals("createStatement"))
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Statement.class },
+                  new FakeStatement(this));
+         if (name.equals("hashCode"))
+            return System.identityHashCode(proxy);
+         if (name.equals("equals"))
+            return proxy == args[0];
+         throw new SQLFeatureNotSupportedException(name);
+      }
+
+      /* Runs a statement, "fail" stands for any statement the server rejects */
+      void execute(String sql) throws SQLException {
+         if (this.closed || this.broken)
+            throw new SQLException("connection lost");
+         if (this.aborted)
+            throw new SQLException("current transaction is aborted, commands ignored until end of transaction block");
+         if (sql.equals("fail")) {
+            if (!this.autoCommit)
+               this.aborted = true;
+            throw new SQLException("syntax error");
+         }
+      }
+   }// end FakeConnection
+
+   static class FakeStatement implements InvocationHandler {
+      private final FakeConnection _connection;
+
+      FakeStatement(FakeConnection connection) {
+         this._connection = connection;
+      }
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+         String name = method.getName();
+         if (name.equals("close"))
+            return null;
+         if (name.equals("execute") || name.equals("executeUpdate") || name.equals("executeQuery")) {
+            this._connection.execute((String) args[0]);
+            if (name.equals("execute"))
+               return true;
+            if (name.equals("executeUpdate"))
+               return 0;
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { ResultSet.class },
+                  new InvocationHandler() {
+                     public Object invoke(Object rs, Method m, Object[] a) {
+                        return m.getName().equals("next") ? Boolean.FALSE : null;
+                     }
+                  });
+         }
+         throw new SQLFeatureNotSupportedException(name);
+      }
+   }// end FakeStatement
+
+   /* Hands out fake connections for URL */
+   public static class FakeDriver implements Driver {
+      FakeConnection last = null;
+
+      public Connection connect(String url, Properties info) {
+         if (!acceptsURL(url))
+            return null;
+         this.last = new FakeConnection();
+         return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+               new Class<?>[] { Connection.class }, this.last);
+      }
+
+      public boolean acceptsURL(String url) {
+         return url.startsWith("jdbc:cafetest:");
+      }
+
+      public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+         return new DriverPropertyInfo[0];
+      }
+
+      public int getMajorVersion() {
+         return 1;
+      }
+
+      public int getMinorVersion() {
+         return 0;
+      }
+
+      public boolean jdbcCompliant() {
+         return false;
+      }
+
+      public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+         throw new SQLFeatureNotSupportedException();
+      }
+   }// end FakeDriver
+
+   static int failures = 0;
+
+   public static void main(String[] args) throws Exception {
+      FakeDriver driver = new FakeDriver();
+      DriverManager.registerDriver(driver);
+      failedTransactionIsReused(driver);
+      deadConnectionIsClosed(driver);
+      if (failures > 0) {
+         System.out.println(failures + " check(s) failed");
+         System.exit(1);
+      }
+      System.out.println("ConnectionPoolTest OK");
+   }// end main
+
+   /* A transaction aborted by an error is rolled back and its connection reused */
+   static void failedTransactionIsReused(FakeDriver driver) throws SQLException {
+      ConnectionPool pool = new ConnectionPool(URL, "cafe", "");
+      try {
+         PooledConnection conn = pool.borrow();
+         conn.getConnection().setAutoCommit(false);
+         try {
+            conn.getConnection().createStatement().execute("fail");
+         } catch (SQLException e) {
+            conn.markSuspect();
+         }
+         pool.release(conn);
+         check(pool.getIdleCount() == 1, "the connection of a failed transaction is kept idle");
+
+         PooledConnection again = pool.borrow();
+         check(again == conn, "the same connection is handed out again");
+         check(again.getConnection().getAutoCommit(), "autocommit is restored");
+         check(!driver.last.aborted, "the aborted transaction is rolled back");
+         pool.release(again);
+      } finally {
+         pool.close();
+      }
+   }// end failedTransactionIsReused
+
+   /* A suspect connection that no longer answers is closed, not reused */
+   static void deadConnectionIsClosed(FakeDriver driver) throws SQLException {
+      ConnectionPool pool = new ConnectionPool(URL, "cafe", "");
+      try {
+         PooledConnection conn = pool.borrow();
+         FakeConnection physical = driver.last;
+         physical.broken = true;
+         conn.markSuspect();
+         pool.release(conn);
+         check(pool.getIdleCount() == 0, "a connection that does not answer is not kept");
+         check(physical.closed, "a connection that does not answer is closed");
+
+         PooledConnection fresh = pool.borrow();
+         check(fresh != conn, "a new connection is opened instead");
+         pool.release(fresh);
+      } finally {
+         pool.close();
+      }
+   }// end deadConnectionIsClosed
+
+   private static void check(boolean condition, String description) {
+      if (condition)
+         return;
+      ++failures;
+      System.out.println("FAILED: " + description);
+   }// end check
+
+}// end ConnectionPoolTest
@@ -0,0 +1,10 @@
+#!/bin/bash
+#upgrades a database created by an older create_tables.sql, run each migration once in order
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_menu_version.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_varchar.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_favorites.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_password_hash.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_order_history.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_indexes.sql
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/migrate_kitchen_queue.sql
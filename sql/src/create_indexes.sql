@@ -1,7 +1,24 @@
-CREATE INDEX index1
-ON orders
-(timeStampRecieved);
+--ItemStatus lookups by orderid use the (orderid,itemName) primary key
 
-CREATE INDEX index2
+--which users favorite an item, the primary key already covers lookups by login
+CREATE INDEX index3
+ON UserFavorites
+( itemName );
+
+--a user's order history newest first, matches the keyset paging of ViewRecentOrders
+CREATE INDEX index4
+ON Orders
+( login, timeStampRecieved DESC, orderid DESC );
+
+--unpaid orders oldest first for the payment screen, paid orders are left out of the index
+CREATE INDEX index5
+ON Orders
+( timeStampRecieved, orderid )
+WHERE paid = false;
+
+--items of the kitchen queue by status, oldest update first
+CREATE INDEX index6
 ON ItemStatus
-( orderid );
+( status, lastUpdated );
+
+--the menu is served from MenuCache, so no index on Menu besides its primary key
@@ -2,30 +2,61 @@ DROP TABLE Users CASCADE;
 DROP TABLE Orders CASCADE;
 DROP TABLE Menu CASCADE;
 DROP TABLE ItemStatus;
+DROP TABLE MenuVersion;
+DROP TABLE UserFavorites;
 
 CREATE TABLE Users(
-	login char(50) UNIQUE NOT NULL, 
-	phoneNum char(16) UNIQUE, 
-	password char(50) NOT NULL,
-	favItems char(400),
-	type char(8) NOT NULL,
+	login varchar(50) UNIQUE NOT NULL, 
+	phoneNum varchar(16) UNIQUE, 
+	password varchar(128) NOT NULL, --pbkdf2 hash, see PasswordHasher
+	--deprecated, only here so users.csv loads; split into UserFavorites and cleared by load_data.sql
+	favItems text,
+	type varchar(8) NOT NULL,
 	PRIMARY KEY(login));
 
 CREATE TABLE Menu(
-	itemName char(50) UNIQUE NOT NULL,
-	type char(20) NOT NULL,
+	itemName varchar(50) UNIQUE NOT NULL,
+	type varchar(20) NOT NULL,
 	price real NOT NULL,
-	description char(400),
-	imageURL char(256),
+	description text,
+	imageURL varchar(256),
 	PRIMARY KEY(itemName));
 
+--single row stamp bumped on every menu write so app instances can tell their cached menu is stale
+CREATE TABLE MenuVersion(
+	version bigint NOT NULL);
+INSERT INTO MenuVersion VALUES (0);
+
+CREATE OR REPLACE FUNCTION bump_menu_version() RETURNS trigger AS $$
+BEGIN
+	UPDATE MenuVersion SET version = version + 1;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER menu_version_trigger
+	AFTER INSERT OR UPDATE OR DELETE ON Menu
+	FOR EACH STATEMENT EXECUTE PROCEDURE bump_menu_version();
+
+--one row per favorite item of a user
+CREATE TABLE UserFavorites(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login)
+	ON UPDATE CASCADE
+	ON DELETE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName)
+	ON UPDATE CASCADE
+	ON DELETE CASCADE);
+
 CREATE TABLE Orders(
 	orderid serial UNIQUE NOT NULL,
-	login char(50), 
+	login varchar(50), 
 	paid boolean,
 	timeStampRecieved timestamp NOT NULL,
 	total real NOT NULL,
-	PRIMARY KEY(orderid)
+	PRIMARY KEY(orderid),
 	--added so that when users put in an order but update their login/login gets deleted, you can still find the order
 	FOREIGN KEY(login) REFERENCES Users(login)
 	ON UPDATE CASCADE
@@ -33,16 +64,28 @@ CREATE TABLE Orders(
 
 CREATE TABLE ItemStatus(
 	orderid integer,
-	itemName char(50), 
+	itemName varchar(50), 
 	lastUpdated timestamp NOT NULL,
-	status char(20), 
-	comments char(130), 
+	status varchar(20), 
+	comments varchar(130), 
 	PRIMARY KEY(orderid,itemName),
 	--added so that when users delete/update order, itemstatus will also be updated
-	FOREIGN KEY(orderid) REFERENCES Orders(orderid),
+	FOREIGN KEY(orderid) REFERENCES Orders(orderid)
 	ON UPDATE CASCADE
 	ON DELETE CASCADE,
 	--added so that when manager updates menu, itemstatus gets updates as well
 	FOREIGN KEY(itemName) REFERENCES Menu(itemName)
 	ON UPDATE CASCADE
 	ON DELETE CASCADE);
+
+--tells kitchen queues listening on item_status that items were added or changed status
+CREATE OR REPLACE FUNCTION notify_item_status() RETURNS trigger AS $$
+BEGIN
+	NOTIFY item_status;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER item_status_trigger
+	AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_item_status();
@@ -6,6 +6,16 @@ COPY USERS
 FROM 'users.csv'
 WITH DELIMITER ';';
 
+--split the comma separated favorites into rows, keeping only items on the menu
+INSERT INTO UserFavorites (login, itemName)
+SELECT DISTINCT u.login, m.itemName
+FROM Users u
+CROSS JOIN regexp_split_to_table(u.favItems, ',') AS f(name)
+JOIN Menu m ON lower(m.itemName) = lower(trim(f.name));
+
+--UserFavorites is the only copy from here on
+UPDATE Users SET favItems = NULL;
+
 COPY ORDERS
 FROM 'orders.csv'
 WITH DELIMITER ';';
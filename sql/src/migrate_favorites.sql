@@ -0,0 +1,30 @@
+--moves the comma separated Users.favItems into the UserFavorites relation
+BEGIN;
+
+CREATE TABLE UserFavorites(
+	login varchar(50) NOT NULL,
+	itemName varchar(50) NOT NULL,
+	PRIMARY KEY(login,itemName),
+	FOREIGN KEY(login) REFERENCES Users(login)
+	ON UPDATE CASCADE
+	ON DELETE CASCADE,
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName)
+	ON UPDATE CASCADE
+	ON DELETE CASCADE);
+
+CREATE INDEX index3
+ON UserFavorites
+( itemName );
+
+INSERT INTO UserFavorites (login, itemName)
+SELECT DISTINCT u.login, m.itemName
+FROM Users u
+CROSS JOIN regexp_split_to_table(u.favItems, ',') AS f(name)
+JOIN Menu m ON lower(m.itemName) = lower(trim(f.name));
+
+--UserFavorites is the only copy from here on, the column is deprecated
+UPDATE Users SET favItems = NULL;
+
+COMMIT;
+
+ANALYZE UserFavorites;
@@ -0,0 +1,13 @@
+--replaces the index set with one matched to the queries the app issues, check with Cafe --check-plans
+DROP INDEX IF EXISTS index1;
+DROP INDEX IF EXISTS index2;
+DROP INDEX IF EXISTS index7;
+
+CREATE INDEX index5
+ON Orders
+( timeStampRecieved, orderid )
+WHERE paid = false;
+
+CREATE INDEX index6
+ON ItemStatus
+( status, lastUpdated );
@@ -0,0 +1,11 @@
+--notifies kitchen queues listening on item_status whenever ItemStatus changes
+CREATE OR REPLACE FUNCTION notify_item_status() RETURNS trigger AS $$
+BEGIN
+	NOTIFY item_status;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER item_status_trigger
+	AFTER INSERT OR UPDATE OR DELETE ON ItemStatus
+	FOR EACH STATEMENT EXECUTE PROCEDURE notify_item_status();
@@ -0,0 +1,15 @@
+--version stamp the menu cache polls to pick up menu edits from other instances
+CREATE TABLE MenuVersion(
+	version bigint NOT NULL);
+INSERT INTO MenuVersion VALUES (0);
+
+CREATE OR REPLACE FUNCTION bump_menu_version() RETURNS trigger AS $$
+BEGIN
+	UPDATE MenuVersion SET version = version + 1;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER menu_version_trigger
+	AFTER INSERT OR UPDATE OR DELETE ON Menu
+	FOR EACH STATEMENT EXECUTE PROCEDURE bump_menu_version();
@@ -0,0 +1,4 @@
+--adds the index backing the paged order history
+CREATE INDEX index4
+ON Orders
+( login, timeStampRecieved DESC, orderid DESC );
@@ -0,0 +1,2 @@
+--widens Users.password to hold PBKDF2 hashes, plaintext passwords are hashed on the next login
+ALTER TABLE Users ALTER COLUMN password TYPE varchar(128);
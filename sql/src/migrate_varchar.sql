@@ -0,0 +1,44 @@
+--converts a database created with the fixed-width char(n) schema to variable-length columns
+--char(n) values are blank padded, rtrim drops the padding while converting
+BEGIN;
+
+ALTER TABLE Orders DROP CONSTRAINT orders_login_fkey;
+ALTER TABLE ItemStatus DROP CONSTRAINT itemstatus_itemname_fkey;
+
+ALTER TABLE Users
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login),
+	ALTER COLUMN phoneNum TYPE varchar(16) USING rtrim(phoneNum),
+	ALTER COLUMN password TYPE varchar(50) USING rtrim(password),
+	ALTER COLUMN favItems TYPE text USING rtrim(favItems),
+	ALTER COLUMN type TYPE varchar(8) USING rtrim(type);
+
+ALTER TABLE Menu
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN type TYPE varchar(20) USING rtrim(type),
+	ALTER COLUMN description TYPE text USING rtrim(description),
+	ALTER COLUMN imageURL TYPE varchar(256) USING rtrim(imageURL);
+
+ALTER TABLE Orders
+	ALTER COLUMN login TYPE varchar(50) USING rtrim(login);
+
+ALTER TABLE ItemStatus
+	ALTER COLUMN itemName TYPE varchar(50) USING rtrim(itemName),
+	ALTER COLUMN status TYPE varchar(20) USING rtrim(status),
+	ALTER COLUMN comments TYPE varchar(130) USING rtrim(comments);
+
+ALTER TABLE Orders ADD CONSTRAINT orders_login_fkey
+	FOREIGN KEY(login) REFERENCES Users(login)
+	ON UPDATE CASCADE
+	ON DELETE CASCADE;
+ALTER TABLE ItemStatus ADD CONSTRAINT itemstatus_itemname_fkey
+	FOREIGN KEY(itemName) REFERENCES Menu(itemName)
+	ON UPDATE CASCADE
+	ON DELETE CASCADE;
+
+COMMIT;
+
+--reclaim the space freed by the padding
+VACUUM FULL ANALYZE Users;
+VACUUM FULL ANALYZE Menu;
+VACUUM FULL ANALYZE Orders;
+VACUUM FULL ANALYZE ItemStatus;